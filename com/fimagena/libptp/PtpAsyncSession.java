@@ -0,0 +1,217 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+
+public class PtpAsyncSession {
+
+    // Asynchronous facade over a PtpSession: operations are queued and run one after the other (a session
+    // only runs one transaction at a time anyway) on the given executor, by default on a thread from the
+    // connection's thread factory. Each returns a Transaction, a CompletableFuture that also tells the
+    // transaction ID once the request has gone out. Callbacks run on the executor's threads.
+
+    public interface Operation<T> {T execute(PtpSession session) throws Exception;}
+
+    public static class Transaction<T> extends CompletableFuture<T> implements PtpSession.RequestObserver {
+        private volatile PtpOperation.Request mRequest;
+
+        // of the (latest) request the operation has sent, -1 while still queued
+        public long getTransactionId() {
+            PtpOperation.Request request = mRequest;
+            return request == null ? -1 : request.getTransactionId();
+        }
+        public PtpOperation.Request getRequest() {return mRequest;}
+
+        @Override public void onRequest(PtpOperation.Request request) {mRequest = request;}
+
+        // a transaction that's already running is cancelled on the transport as well
+        @Override public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean isCancelled = super.cancel(mayInterruptIfRunning);
+            PtpOperation.Request request = mRequest;
+            if (isCancelled && (request != null)) {
+                try {request.cancel();}
+                catch (PtpTransport.TransportIOError e) {}                 // connection's gone - so is the transaction
+            }
+            return isCancelled;
+        }
+    }
+
+    private final PtpSession mSession;
+    private final Executor mExecutor;
+
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+    private boolean mIsRunning = false;
+
+    private final Runnable mDrainer = new Runnable() {
+        @Override public void run() {
+            boolean isDrained = false;
+            try {
+                while (true) {
+                    Runnable task;
+                    synchronized (mQueue) {
+                        task = mQueue.poll();
+                        if (task == null) {mIsRunning = false; isDrained = true; return;}
+                    }
+                    task.run();
+                }
+            }
+            finally {
+                // a task blew up: let the next submit start a new drainer rather than queue forever
+                if (!isDrained) synchronized (mQueue) {mIsRunning = false;}
+            }
+        }
+    };
+
+    public PtpAsyncSession(final PtpSession session) {
+        this(session, new Executor() {
+            private final ThreadFactory mThreadFactory = session.getConnection().getThreadFactory();
+            @Override public void execute(Runnable runnable) {mThreadFactory.newThread(runnable).start();}
+        });
+    }
+    public PtpAsyncSession(PtpSession session, Executor executor) {
+        mSession = session;
+        mExecutor = executor;
+    }
+
+    public PtpSession getSession() {return mSession;}
+
+    // operations run in the order they were submitted; cancelling a queued one skips it, a running one is
+    // cancelled on the transport (the session is free again as soon as the responder has confirmed)
+    public <T> Transaction<T> submit(final Operation<T> operation) {
+        final Transaction<T> transaction = new Transaction<>();
+        Runnable task = new Runnable() {
+            @Override public void run() {
+                if (transaction.isDone()) return;
+                try {transaction.complete(operation.execute(mSession.observedBy(transaction)));}
+                catch (Throwable e) {
+                    transaction.completeExceptionally(e);
+                    if (e instanceof Error) throw (Error) e;
+                }
+            }
+        };
+        boolean startDrainer;
+        synchronized (mQueue) {
+            mQueue.add(task);
+            startDrainer = !mIsRunning;
+            mIsRunning = true;
+        }
+        if (startDrainer) {
+            try {mExecutor.execute(mDrainer);}
+            catch (RuntimeException e) {
+                synchronized (mQueue) {mQueue.remove(task); mIsRunning = false;}
+                transaction.completeExceptionally(e);
+            }
+        }
+        return transaction;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Operations
+
+    public Transaction<PtpOperation.Response> executeOperation(final PtpOperation.Request request) {
+        return submit(new Operation<PtpOperation.Response>() {
+            @Override public PtpOperation.Response execute(PtpSession session) throws Exception {return session.executeOperation(request);}
+        });
+    }
+
+    public Transaction<PtpDataType.StorageID[]> getStorageIDs() {
+        return submit(new Operation<PtpDataType.StorageID[]>() {
+            @Override public PtpDataType.StorageID[] execute(PtpSession session) throws Exception {return session.getStorageIDs();}
+        });
+    }
+
+    public Transaction<PtpDataType.StorageInfoDataSet> getStorageInfo(final PtpDataType.StorageID storageId) {
+        return submit(new Operation<PtpDataType.StorageInfoDataSet>() {
+            @Override public PtpDataType.StorageInfoDataSet execute(PtpSession session) throws Exception {return session.getStorageInfo(storageId);}
+        });
+    }
+
+    public Transaction<PtpDataType.ObjectHandle[]> getObjectHandles(final PtpDataType.StorageID storageId) {
+        return submit(new Operation<PtpDataType.ObjectHandle[]>() {
+            @Override public PtpDataType.ObjectHandle[] execute(PtpSession session) throws Exception {return session.getObjectHandles(storageId);}
+        });
+    }
+
+    public Transaction<PtpDataType.ObjectInfoDataSet> getObjectInfo(final PtpDataType.ObjectHandle objectHandle) {
+        return submit(new Operation<PtpDataType.ObjectInfoDataSet>() {
+            @Override public PtpDataType.ObjectInfoDataSet execute(PtpSession session) throws Exception {return session.getObjectInfo(objectHandle);}
+        });
+    }
+
+    public Transaction<PtpDataType.ObjectInfoView> getObjectInfoView(final PtpDataType.ObjectHandle objectHandle) {
+        return submit(new Operation<PtpDataType.ObjectInfoView>() {
+            @Override public PtpDataType.ObjectInfoView execute(PtpSession session) throws Exception {return session.getObjectInfoView(objectHandle);}
+        });
+    }
+
+    public Transaction<byte[]> getObject(final PtpDataType.ObjectHandle objectHandle, final PtpSession.DataLoadListener listener) {
+        return submit(new Operation<byte[]>() {
+            @Override public byte[] execute(PtpSession session) throws Exception {return session.getObject(objectHandle, listener);}
+        });
+    }
+    public Transaction<File> getObject(final PtpDataType.ObjectHandle objectHandle, final File file, final PtpSession.DataLoadListener listener) {
+        return submit(new Operation<File>() {
+            @Override public File execute(PtpSession session) throws Exception {session.getObject(objectHandle, file, listener); return file;}
+        });
+    }
+
+    public Transaction<byte[]> getThumb(final PtpDataType.ObjectHandle objectHandle) {
+        return submit(new Operation<byte[]>() {
+            @Override public byte[] execute(PtpSession session) throws Exception {return session.getThumb(objectHandle);}
+        });
+    }
+
+    public Transaction<byte[]> getPartialObject(final PtpDataType.ObjectHandle objectHandle, final long offset, final long maxBytes) {
+        return submit(new Operation<byte[]>() {
+            @Override public byte[] execute(PtpSession session) throws Exception {return session.getPartialObject(objectHandle, offset, maxBytes);}
+        });
+    }
+
+    public Transaction<Void> initiateCapture() {
+        return submit(new Operation<Void>() {
+            @Override public Void execute(PtpSession session) throws Exception {session.initiateCapture(); return null;}
+        });
+    }
+
+    public Transaction<PtpDataType.ObjectHandle> sendObjectInfo(final PtpDataType.StorageID storageId, final PtpDataType.ObjectHandle parentHandle, final PtpDataType.ObjectInfoDataSet objectInfo) {
+        return submit(new Operation<PtpDataType.ObjectHandle>() {
+            @Override public PtpDataType.ObjectHandle execute(PtpSession session) throws Exception {return session.sendObjectInfo(storageId, parentHandle, objectInfo);}
+        });
+    }
+
+    public Transaction<Void> sendObject(final File file, final PtpSession.DataLoadListener listener) {
+        return submit(new Operation<Void>() {
+            @Override public Void execute(PtpSession session) throws Exception {session.sendObject(file, listener); return null;}
+        });
+    }
+
+    // closes the session once everything queued before has run
+    public Transaction<Void> close() {
+        return submit(new Operation<Void>() {
+            @Override public Void execute(PtpSession session) throws Exception {session.close(); return null;}
+        });
+    }
+}
@@ -20,9 +20,12 @@
 package com.fimagena.libptp;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 
 
 public class PtpConnection {
@@ -32,7 +35,7 @@ public class PtpConnection {
         void onEvent(PtpEvent event);
     }
 
-    private class EventListener extends Thread {
+    private class EventListener implements Runnable {
         public void run() {
             PtpEvent event;
             while (isConnected() && !mIsClosed) {
@@ -57,7 +60,7 @@ public class PtpConnection {
     }
 
     private boolean mIsClosed = false;
-    private EventListener mEventListener;
+    private Thread mEventListener;
 
     private EventCallbacks mListener;
 
@@ -66,7 +69,8 @@ public class PtpConnection {
     private PtpDataType.DeviceInfoDataSet mDeviceInfo;
     private BlockingQueue<PtpEvent> mEventInQueue;
 
-    private HashSet<PtpSession> mPtpSessions = new HashSet<>();
+    // sessions are opened and closed from any thread (e.g. by a PtpSessionPool or PtpSegmentedDownload)
+    private final Set<PtpSession> mPtpSessions = Collections.newSetFromMap(new ConcurrentHashMap<PtpSession, Boolean>());
 
     public PtpConnection(PtpTransport transport) {
         mTransport = transport;
@@ -80,10 +84,14 @@ public class PtpConnection {
 
     public void registerListener(EventCallbacks listener) {mListener = listener;}
 
+    // listener threads of this connection and its transport (see PtpTransport.setThreadFactory)
+    public void setThreadFactory(ThreadFactory threadFactory) {mTransport.setThreadFactory(threadFactory);}
+    public ThreadFactory getThreadFactory() {return mTransport.getThreadFactory();}
+
     public void connect(PtpTransport.ResponderAddress address, PtpTransport.HostId hostId)
             throws PtpTransport.TransportOperationFailed, PtpTransport.TransportDataError, PtpTransport.TransportIOError, PtpExceptions.PtpProtocolViolation {
         mTransport.connect(address, hostId);
-        mEventListener = new EventListener();
+        mEventListener = mTransport.getThreadFactory().newThread(new EventListener());
         mEventListener.start();
         mDeviceInfo = mTransport.getDeviceInfo();
         mAddress = address;
@@ -110,7 +118,7 @@ public class PtpConnection {
 
         // now close all sessions
         try {
-            for (PtpSession session : mPtpSessions) session.close();
+            for (PtpSession session : new ArrayList<>(mPtpSessions)) session.close();
             mPtpSessions.clear();
         }
 
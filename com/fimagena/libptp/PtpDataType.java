@@ -20,21 +20,112 @@
 package com.fimagena.libptp;
 
 import java.io.Serializable;
-import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
 import java.text.ParsePosition;
-import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public abstract class PtpDataType {
 
     protected abstract void write(PtpTransport.PayloadBuffer out);
-    protected abstract void read (PtpTransport.PayloadBuffer in ) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType;
+    protected abstract void read (PtpTransport.ReadablePayloadBuffer in ) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType;
     @Override public String toString() {return "";}
 
     public void writeToBuffer(PtpTransport.PayloadBuffer out) {write(out);}
 
 
+    // ---------------------------------------------------------------------------------------------
+    // Codecs - precompiled factories per data type so that decoding doesn't need any reflection
+
+
+    public static abstract class Codec<DT extends PtpDataType> {
+        public abstract DT create();
+        public abstract DT[] createArray(int length);
+
+        public DT decode(PtpTransport.ReadablePayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
+            DT dataType = create();
+            dataType.read(in);
+            return dataType;
+        }
+    }
+
+    public final static Codec<UInt16>             CODEC_UInt16             = new Codec<UInt16>            () {public UInt16             create() {return new UInt16            ();} public UInt16            [] createArray(int length) {return new UInt16            [length];}};
+    public final static Codec<UInt32>             CODEC_UInt32             = new Codec<UInt32>            () {public UInt32             create() {return new UInt32            ();} public UInt32            [] createArray(int length) {return new UInt32            [length];}};
+    public final static Codec<UInt64>             CODEC_UInt64             = new Codec<UInt64>            () {public UInt64             create() {return new UInt64            ();} public UInt64            [] createArray(int length) {return new UInt64            [length];}};
+    public final static Codec<Datacode>           CODEC_Datacode           = new Codec<Datacode>          () {public Datacode           create() {return new Datacode          ();} public Datacode          [] createArray(int length) {return new Datacode          [length];}};
+    public final static Codec<PtpString>          CODEC_PtpString          = new Codec<PtpString>         () {public PtpString          create() {return new PtpString         ();} public PtpString         [] createArray(int length) {return new PtpString         [length];}};
+    public final static Codec<OperationCode>      CODEC_OperationCode      = new Codec<OperationCode>     () {public OperationCode      create() {return new OperationCode     ();} public OperationCode     [] createArray(int length) {return new OperationCode     [length];}};
+    public final static Codec<ResponseCode>       CODEC_ResponseCode       = new Codec<ResponseCode>      () {public ResponseCode       create() {return new ResponseCode      ();} public ResponseCode      [] createArray(int length) {return new ResponseCode      [length];}};
+    public final static Codec<EventCode>          CODEC_EventCode          = new Codec<EventCode>         () {public EventCode          create() {return new EventCode         ();} public EventCode         [] createArray(int length) {return new EventCode         [length];}};
+    public final static Codec<DevicePropCode>     CODEC_DevicePropCode     = new Codec<DevicePropCode>    () {public DevicePropCode     create() {return new DevicePropCode    ();} public DevicePropCode    [] createArray(int length) {return new DevicePropCode    [length];}};
+    public final static Codec<ObjectFormatCode>   CODEC_ObjectFormatCode   = new Codec<ObjectFormatCode>  () {public ObjectFormatCode   create() {return new ObjectFormatCode  ();} public ObjectFormatCode  [] createArray(int length) {return new ObjectFormatCode  [length];}};
+    public final static Codec<StorageID>          CODEC_StorageID          = new Codec<StorageID>         () {public StorageID          create() {return new StorageID         ();} public StorageID         [] createArray(int length) {return new StorageID         [length];}};
+    public final static Codec<ObjectHandle>       CODEC_ObjectHandle       = new Codec<ObjectHandle>      () {public ObjectHandle       create() {return new ObjectHandle      ();} public ObjectHandle      [] createArray(int length) {return new ObjectHandle      [length];}};
+    public final static Codec<AssociationCode>    CODEC_AssociationCode    = new Codec<AssociationCode>   () {public AssociationCode    create() {return new AssociationCode   ();} public AssociationCode   [] createArray(int length) {return new AssociationCode   [length];}};
+    public final static Codec<AssociationDesc>    CODEC_AssociationDesc    = new Codec<AssociationDesc>   () {public AssociationDesc    create() {return new AssociationDesc   ();} public AssociationDesc   [] createArray(int length) {return new AssociationDesc   [length];}};
+    public final static Codec<PtpDateTime>        CODEC_PtpDateTime        = new Codec<PtpDateTime>       () {public PtpDateTime        create() {return new PtpDateTime       ();} public PtpDateTime       [] createArray(int length) {return new PtpDateTime       [length];}};
+    public final static Codec<UInt16Array>        CODEC_UInt16Array        = new Codec<UInt16Array>       () {public UInt16Array        create() {return new UInt16Array       ();} public UInt16Array       [] createArray(int length) {return new UInt16Array       [length];}};
+    public final static Codec<UInt32Array>        CODEC_UInt32Array        = new Codec<UInt32Array>       () {public UInt32Array        create() {return new UInt32Array       ();} public UInt32Array       [] createArray(int length) {return new UInt32Array       [length];}};
+    public final static Codec<StorageIdArray>     CODEC_StorageIdArray     = new Codec<StorageIdArray>    () {public StorageIdArray     create() {return new StorageIdArray    ();} public StorageIdArray    [] createArray(int length) {return new StorageIdArray    [length];}};
+    public final static Codec<ObjectHandleArray>  CODEC_ObjectHandleArray  = new Codec<ObjectHandleArray> () {public ObjectHandleArray  create() {return new ObjectHandleArray ();} public ObjectHandleArray [] createArray(int length) {return new ObjectHandleArray [length];}};
+    public final static Codec<DeviceInfoDataSet>  CODEC_DeviceInfoDataSet  = new Codec<DeviceInfoDataSet> () {public DeviceInfoDataSet  create() {return new DeviceInfoDataSet ();} public DeviceInfoDataSet [] createArray(int length) {return new DeviceInfoDataSet [length];}};
+    public final static Codec<StorageInfoDataSet> CODEC_StorageInfoDataSet = new Codec<StorageInfoDataSet>() {public StorageInfoDataSet create() {return new StorageInfoDataSet();} public StorageInfoDataSet[] createArray(int length) {return new StorageInfoDataSet[length];}};
+    public final static Codec<ObjectInfoDataSet>  CODEC_ObjectInfoDataSet  = new Codec<ObjectInfoDataSet> () {public ObjectInfoDataSet  create() {return new ObjectInfoDataSet ();} public ObjectInfoDataSet [] createArray(int length) {return new ObjectInfoDataSet [length];}};
+    public final static Codec<ObjectInfoView>     CODEC_ObjectInfoView     = new Codec<ObjectInfoView>    () {public ObjectInfoView     create() {return new ObjectInfoView    ();} public ObjectInfoView    [] createArray(int length) {return new ObjectInfoView    [length];}};
+    public final static Codec<Object>             CODEC_Object             = new Codec<Object>            () {public Object             create() {return new Object            ();} public Object            [] createArray(int length) {return new Object            [length];}};
+
+    private final static Map<Class<? extends PtpDataType>, Codec<? extends PtpDataType>> CODECS = new ConcurrentHashMap<>();
+    static {
+        registerCodec(UInt16.class            , CODEC_UInt16            );
+        registerCodec(UInt32.class            , CODEC_UInt32            );
+        registerCodec(UInt64.class            , CODEC_UInt64            );
+        registerCodec(Datacode.class          , CODEC_Datacode          );
+        registerCodec(PtpString.class         , CODEC_PtpString         );
+        registerCodec(OperationCode.class     , CODEC_OperationCode     );
+        registerCodec(ResponseCode.class      , CODEC_ResponseCode      );
+        registerCodec(EventCode.class         , CODEC_EventCode         );
+        registerCodec(DevicePropCode.class    , CODEC_DevicePropCode    );
+        registerCodec(ObjectFormatCode.class  , CODEC_ObjectFormatCode  );
+        registerCodec(StorageID.class         , CODEC_StorageID         );
+        registerCodec(ObjectHandle.class      , CODEC_ObjectHandle      );
+        registerCodec(AssociationCode.class   , CODEC_AssociationCode   );
+        registerCodec(AssociationDesc.class   , CODEC_AssociationDesc   );
+        registerCodec(PtpDateTime.class       , CODEC_PtpDateTime       );
+        registerCodec(UInt16Array.class       , CODEC_UInt16Array       );
+        registerCodec(UInt32Array.class       , CODEC_UInt32Array       );
+        registerCodec(StorageIdArray.class    , CODEC_StorageIdArray    );
+        registerCodec(ObjectHandleArray.class , CODEC_ObjectHandleArray );
+        registerCodec(DeviceInfoDataSet.class , CODEC_DeviceInfoDataSet );
+        registerCodec(StorageInfoDataSet.class, CODEC_StorageInfoDataSet);
+        registerCodec(ObjectInfoDataSet.class , CODEC_ObjectInfoDataSet );
+        registerCodec(ObjectInfoView.class    , CODEC_ObjectInfoView    );
+        registerCodec(Object.class            , CODEC_Object            );
+    }
+
+    // vendor extensions register codecs for their own data types here
+    public static <DT extends PtpDataType> void registerCodec(Class<DT> dataType, Codec<DT> codec) {CODECS.put(dataType, codec);}
+    @SuppressWarnings("unchecked") // registerCodec only pairs a class with a codec of the same type
+    public static <DT extends PtpDataType> Codec<DT> getCodec(Class<DT> dataType) {return (Codec<DT>) CODECS.get(dataType);}
+
+    private static <DT extends PtpDataType> Codec<DT> requireCodec(Class<DT> dataType) {
+        Codec<DT> codec = getCodec(dataType);
+        if (codec == null) throw new IllegalArgumentException("No codec registered for " + dataType.getName() + "!");
+        return codec;
+    }
+
+
     // ---------------------------------------------------------------------------------------------
     // Primitive Datatypes
 
@@ -43,7 +134,7 @@ public abstract class PtpDataType {
         public int mValue;
 
         @Override protected void write(PtpTransport.PayloadBuffer out) {out.writeUInt16(mValue);}
-        @Override protected void read (PtpTransport.PayloadBuffer in ) throws PtpTransport.TransportDataError {mValue = in.readUInt16();}
+        @Override protected void read (PtpTransport.ReadablePayloadBuffer in ) throws PtpTransport.TransportDataError {mValue = in.readUInt16();}
         @Override public String toString() {return String.format("0x%04x", mValue);}
         public UInt16() {}
         public UInt16(int value) {mValue = value;}
@@ -53,7 +144,7 @@ public abstract class PtpDataType {
         public long mValue;
 
         @Override protected void write(PtpTransport.PayloadBuffer out) {out.writeUInt32(mValue);}
-        @Override protected void read (PtpTransport.PayloadBuffer in ) throws PtpTransport.TransportDataError {mValue = in.readUInt32();}
+        @Override protected void read (PtpTransport.ReadablePayloadBuffer in ) throws PtpTransport.TransportDataError {mValue = in.readUInt32();}
         @Override public String toString() {return String.format("0x%08x", mValue);}
         public UInt32() {}
         public UInt32(long value) {mValue = value;}
@@ -63,7 +154,7 @@ public abstract class PtpDataType {
         public long mValue;
 
         @Override protected void write(PtpTransport.PayloadBuffer out) {out.writeUInt64(mValue);}
-        @Override protected void read (PtpTransport.PayloadBuffer in ) throws PtpTransport.TransportDataError {mValue = in.readUInt64();}
+        @Override protected void read (PtpTransport.ReadablePayloadBuffer in ) throws PtpTransport.TransportDataError {mValue = in.readUInt64();}
         @Override public String toString() {return String.format("0x%016x", mValue);}
         public UInt64() {}
         public UInt64(long value) {mValue = value;}
@@ -82,42 +173,73 @@ public abstract class PtpDataType {
                 out.writeUInt16((short) mString.charAt(i));
             out.writeUInt16(0);
         }
-        @Override protected void read(PtpTransport.PayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
+        @Override protected void read(PtpTransport.ReadablePayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
             int length = in.readUInt8();
             if (length == 0) {mString = ""; return;}
 
-            char[] stringBuffer = new char[length - 1];
-            for (int i = 0; i < (length - 1); i++) {
-                stringBuffer[i] = (char) in.readUInt16();
+            char[] stringBuffer = new char[length];
+            in.readUtf16(stringBuffer, 0, length);
+            for (int i = 0; i < (length - 1); i++)
                 if (stringBuffer[i] == 0) throw new PtpExceptions.MalformedDataType("PtpString null-terminated before stated length!");
-            }
-            if (in.readUInt16() != 0) throw new PtpExceptions.MalformedDataType("PtpString not null-terminated at stated length!");
-            mString = new String(stringBuffer, 0, length - 1);
+            if (stringBuffer[length - 1] != 0) throw new PtpExceptions.MalformedDataType("PtpString not null-terminated at stated length!");
+
+            StringCache cache = sStringCache;
+            mString = cache != null ? cache.get(stringBuffer, 0, length - 1) : new String(stringBuffer, 0, length - 1);
         }
         @Override public String toString() {return "\"" + mString + "\"";}
 
+        // strings like manufacturer, model or keywords repeat a lot - optionally share their instances
+        private static volatile StringCache sStringCache;
+        public static void setStringCache(StringCache cache) {sStringCache = cache;}
+
         public PtpString() {}
         public PtpString(String s) {if (s.length() > 254) s = s.substring(0, 254); mString = s;}
     }
 
 
+    public static class StringCache {
+        // Bounded, direct-mapped intern cache: a repeated string costs a hash and a compare instead of
+        // a new String, a colliding one simply replaces the entry. Safe to share between threads.
+
+        private final String[] mEntries;
+
+        public StringCache(int size) {
+            int capacity = 1;
+            while (capacity < size) capacity <<= 1;
+            mEntries = new String[capacity];
+        }
+
+        public String get(char[] chars, int offset, int length) {
+            int hash = 0;
+            for (int i = 0; i < length; i++) hash = 31 * hash + chars[offset + i];
+            int index = (hash ^ (hash >>> 16)) & (mEntries.length - 1);
+
+            String entry = mEntries[index];
+            if ((entry != null) && (entry.hashCode() == hash) && (entry.length() == length)) {
+                int i = 0;
+                while ((i < length) && (entry.charAt(i) == chars[offset + i])) i++;
+                if (i == length) return entry;
+            }
+            entry = new String(chars, offset, length);
+            mEntries[index] = entry;
+            return entry;
+        }
+    }
+
+
     public static class ArrayType<DT extends PtpDataType> extends PtpDataType implements Serializable {
         protected DT[] mArrayData;
+        protected final transient Codec<DT> mCodec; // codecs aren't serialized - a deserialized array keeps its data only
 
         @Override protected void write(PtpTransport.PayloadBuffer out) {
             out.writeUInt32(mArrayData.length);
             for (DT dt : mArrayData) dt.write(out);
         }
-        @Override protected void read(PtpTransport.PayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
+        @Override protected void read(PtpTransport.ReadablePayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
             long arrayLength = in.readUInt32();
-            Class dtClass = mArrayData.getClass().getComponentType();
             // TODO...: potentially dangerous, can lead to OOM
-            mArrayData = (DT[]) Array.newInstance(dtClass, (int) arrayLength);
-
-            for (int i = 0; i < arrayLength; i++) {
-                try {mArrayData[i] = (DT) dtClass.newInstance();} catch (InstantiationException | IllegalAccessException e) {}
-                mArrayData[i].read(in);
-            }
+            mArrayData = mCodec.createArray((int) arrayLength);
+            for (int i = 0; i < arrayLength; i++) mArrayData[i] = mCodec.decode(in);
         }
         @Override public String toString() {
             String output = "{ ";
@@ -126,7 +248,83 @@ public abstract class PtpDataType {
             return output;
         }
 
-        public ArrayType(Class dtClass) {mArrayData = (DT[]) Array.newInstance(dtClass, 0);}
+        public ArrayType(Codec<DT> codec) {
+            mCodec = codec;
+            mArrayData = codec.createArray(0);
+        }
+        public ArrayType(Class<DT> dtClass) {this(requireCodec(dtClass));}
+    }
+
+
+    // primitive-backed arrays of the integer types, decoded in bulk - no object per element
+
+    public static class UInt16Array extends PtpDataType implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        protected short[] mValues = new short[0];
+
+        public int size() {return mValues.length;}
+        public int get(int index) {return mValues[index] & 0xFFFF;}
+        public boolean contains(int value) {
+            for (short element : mValues) if ((element & 0xFFFF) == value) return true;
+            return false;
+        }
+
+        @Override protected void write(PtpTransport.PayloadBuffer out) {
+            out.writeUInt32(mValues.length);
+            for (short element : mValues) out.writeUInt16(element & 0xFFFF);
+        }
+        @Override protected void read(PtpTransport.ReadablePayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
+            long arrayLength = in.readUInt32();
+            if (arrayLength > Integer.MAX_VALUE / 2) throw new PtpExceptions.MalformedDataType("Array length out of range (" + arrayLength + ")!");
+            // TODO...: potentially dangerous, can lead to OOM
+            mValues = new short[(int) arrayLength];
+            in.readUInt16Array(mValues, 0, mValues.length);
+        }
+        @Override public String toString() {
+            StringBuilder output = new StringBuilder("{ ");
+            for (int i = 0; i < mValues.length; i++) output.append(elementToString(get(i))).append(", ");
+            return output.append("}").toString();
+        }
+        protected String elementToString(int value) {return String.format("0x%04x", value);}
+
+        public UInt16Array() {}
+        public UInt16Array(int[] values) {
+            mValues = new short[values.length];
+            for (int i = 0; i < values.length; i++) mValues[i] = (short) values[i];
+        }
+    }
+
+    public static class UInt32Array extends PtpDataType implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        protected int[] mValues = new int[0];
+
+        public int size() {return mValues.length;}
+        public long get(int index) {return mValues[index] & 0xFFFFFFFFL;}
+
+        @Override protected void write(PtpTransport.PayloadBuffer out) {
+            out.writeUInt32(mValues.length);
+            for (int element : mValues) out.writeUInt32(element & 0xFFFFFFFFL);
+        }
+        @Override protected void read(PtpTransport.ReadablePayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
+            long arrayLength = in.readUInt32();
+            if (arrayLength > Integer.MAX_VALUE / 4) throw new PtpExceptions.MalformedDataType("Array length out of range (" + arrayLength + ")!");
+            // TODO...: potentially dangerous, can lead to OOM
+            mValues = new int[(int) arrayLength];
+            in.readUInt32Array(mValues, 0, mValues.length);
+        }
+        @Override public String toString() {
+            StringBuilder output = new StringBuilder("{ ");
+            for (int i = 0; i < mValues.length; i++) output.append(String.format("0x%08x", get(i))).append(", ");
+            return output.append("}").toString();
+        }
+
+        public UInt32Array() {}
+        public UInt32Array(long[] values) {
+            mValues = new int[values.length];
+            for (int i = 0; i < values.length; i++) mValues[i] = (int) values[i];
+        }
     }
 
 
@@ -170,26 +368,88 @@ public abstract class PtpDataType {
     public static class AssociationDesc     extends UInt32 implements Serializable {public AssociationDesc(int  value) {mValue = value;} public AssociationDesc() {}}
 
     public static class PtpDateTime extends PtpString implements Serializable {
+        // PTP grammar is yyyyMMdd'T'HHmmss[.S][Z] with Z being either 'Z' or +/-hhmm; without offset it's local time.
+        // The formatters are immutable and thread-safe, so they're built once and shared.
+        private final static DateTimeFormatter PARSER = new DateTimeFormatterBuilder()
+                .appendPattern("yyyyMMdd'T'HHmmss")
+                .optionalStart().appendFraction(ChronoField.NANO_OF_SECOND, 1, 9, true).optionalEnd()
+                .optionalStart().appendOffset("+HHMM", "Z").optionalEnd()
+                .toFormatter();
+        private final static DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssZ");
+
         public Date mDate = new Date();
 
         @Override protected void write(PtpTransport.PayloadBuffer out) {
-            mString = mDate != null ? new SimpleDateFormat("yyyyMMdd'T'HHmmssZ").format(mDate) : "";
+            mString = mDate != null ? FORMATTER.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(mDate.getTime()), ZoneId.systemDefault())) : "";
             super.write(out);
         }
-        @Override protected void read(PtpTransport.PayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
+        @Override protected void read(PtpTransport.ReadablePayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
             super.read(in);
+            parse();
+        }
+        protected void parse() throws PtpExceptions.MalformedDataType {
             if ("".equals(mString)) {mDate = null; return;}
-                               mDate = new SimpleDateFormat("yyyyMMdd'T'HHmmss.SZ").parse(mString, new ParsePosition(0));
-            if (mDate == null) mDate = new SimpleDateFormat("yyyyMMdd'T'HHmmssZ"  ).parse(mString, new ParsePosition(0));
-            if (mDate == null) mDate = new SimpleDateFormat("yyyyMMdd'T'HHmmss.S" ).parse(mString, new ParsePosition(0));
-            if (mDate == null) mDate = new SimpleDateFormat("yyyyMMdd'T'HHmmss"   ).parse(mString, new ParsePosition(0));
-            if (mDate == null) throw new PtpExceptions.MalformedDataType("Cannot parse Date string (\"" + mString + "\")");
+            try {
+                // like before, anything trailing the grammar is ignored
+                TemporalAccessor parsed = PARSER.parse(mString, new ParsePosition(0));
+                Instant instant = parsed.isSupported(ChronoField.OFFSET_SECONDS) ? OffsetDateTime.from(parsed).toInstant()
+                                                                                  : LocalDateTime.from(parsed).atZone(ZoneId.systemDefault()).toInstant();
+                mDate = new Date(instant.toEpochMilli());
+            }
+            catch (DateTimeException e) {throw new PtpExceptions.MalformedDataType("Cannot parse Date string (\"" + mString + "\")");}
         }
         @Override public String toString() {return "[" + mDate + "]";}
     }
 
-    public static class StorageIdArray    extends ArrayType<StorageID>    implements Serializable {public StorageIdArray   () {super(StorageID   .class);}}
-    public static class ObjectHandleArray extends ArrayType<ObjectHandle> implements Serializable {public ObjectHandleArray() {super(ObjectHandle.class);}}
+    // the standard lists stay primitive-backed; the boxed codes, IDs and handles are only made when asked for
+
+    public static class DatacodeArray<DC extends Datacode> extends UInt16Array implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        protected final transient Codec<DC> mCodec; // not serialized - a deserialized array keeps its values only
+
+        public DC getCode(int index) {
+            DC code = mCodec.create();
+            code.mValue = get(index);
+            return code;
+        }
+        public DC[] toCodes() {
+            DC[] codes = mCodec.createArray(mValues.length);
+            for (int i = 0; i < mValues.length; i++) codes[i] = getCode(i);
+            return codes;
+        }
+        // the element types know their descriptions
+        @Override protected String elementToString(int value) {
+            if (mCodec == null) return super.elementToString(value);
+            DC code = mCodec.create();
+            code.mValue = value;
+            return code.toString();
+        }
+
+        public DatacodeArray(Codec<DC> codec) {mCodec = codec;}
+    }
+
+    public static class StorageIdArray extends UInt32Array implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public StorageID getStorageID(int index) {return new StorageID(get(index));}
+        public StorageID[] toStorageIDs() {
+            StorageID[] storageIds = new StorageID[mValues.length];
+            for (int i = 0; i < mValues.length; i++) storageIds[i] = getStorageID(i);
+            return storageIds;
+        }
+    }
+
+    public static class ObjectHandleArray extends UInt32Array implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public ObjectHandle getObjectHandle(int index) {return new ObjectHandle(get(index));}
+        public ObjectHandle[] toObjectHandles() {
+            ObjectHandle[] objectHandles = new ObjectHandle[mValues.length];
+            for (int i = 0; i < mValues.length; i++) objectHandles[i] = getObjectHandle(i);
+            return objectHandles;
+        }
+    }
 
 
     public static class DeviceInfoDataSet extends PtpDataType implements Serializable {
@@ -198,11 +458,11 @@ public abstract class PtpDataType {
         public UInt16    mVendorExtensionVersion = new UInt16();
         public PtpString mVendorExtensionDesc    = new PtpString();
         public UInt16    mFunctionalMode         = new UInt16();
-        public ArrayType<OperationCode>    mOperationsSupported       = new ArrayType<>(OperationCode.class);
-        public ArrayType<EventCode>        mEventsSupported           = new ArrayType<>(EventCode.class);
-        public ArrayType<DevicePropCode>   mDevicePropertiesSupported = new ArrayType<>(DevicePropCode.class);
-        public ArrayType<ObjectFormatCode> mCaptureFormats            = new ArrayType<>(ObjectFormatCode.class);
-        public ArrayType<ObjectFormatCode> mImageFormats              = new ArrayType<>(ObjectFormatCode.class);
+        public DatacodeArray<OperationCode>    mOperationsSupported       = new DatacodeArray<>(CODEC_OperationCode);
+        public DatacodeArray<EventCode>        mEventsSupported           = new DatacodeArray<>(CODEC_EventCode);
+        public DatacodeArray<DevicePropCode>   mDevicePropertiesSupported = new DatacodeArray<>(CODEC_DevicePropCode);
+        public DatacodeArray<ObjectFormatCode> mCaptureFormats            = new DatacodeArray<>(CODEC_ObjectFormatCode);
+        public DatacodeArray<ObjectFormatCode> mImageFormats              = new DatacodeArray<>(CODEC_ObjectFormatCode);
         public PtpString mManufacturer  = new PtpString();
         public PtpString mModel         = new PtpString();
         public PtpString mDeviceVersion = new PtpString();
@@ -225,7 +485,7 @@ public abstract class PtpDataType {
             mSerialNumber.write(out);
         }
 
-        @Override protected void read(PtpTransport.PayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
+        @Override protected void read(PtpTransport.ReadablePayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
             mStandardVersion.read(in);
             mVendorExtensionId.read(in);
             mVendorExtensionVersion.read(in);
@@ -283,7 +543,7 @@ public abstract class PtpDataType {
             mVolumeLabel.write(out);
         }
 
-        @Override protected void read(PtpTransport.PayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
+        @Override protected void read(PtpTransport.ReadablePayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
             mStorageType.read(in);
             mFileSystemType.read(in);
             mAccessCapability.read(in);
@@ -351,7 +611,7 @@ public abstract class PtpDataType {
             mKeywords.write(out);
         }
 
-        @Override protected void read(PtpTransport.PayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
+        @Override protected void read(PtpTransport.ReadablePayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
             mStorageID.read(in);
             mObjectFormatCode.read(in);
             mProtectionStatus.read(in);
@@ -398,6 +658,108 @@ public abstract class PtpDataType {
     }
 
 
+    public static class ObjectInfoView extends PtpDataType implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        // Flyweight over the raw ObjectInfo dataset: fields are only decoded when asked for. The
+        // offsets of the four trailing strings are found once when reading, everything before
+        // them is at a fixed position.
+
+        private final static int FIXED_LENGTH = 52;
+        private final static int FILENAME = 0, CAPTURE_DATE = 1, MODIFICATION_DATE = 2, KEYWORDS = 3;
+
+        private byte[] mData = new byte[0];
+        private int[] mStringOffsets = new int[4];
+
+        public long getStorageID()            {return getUInt32(0);}
+        public int  getObjectFormatCode()     {return getUInt16(4);}
+        public int  getProtectionStatus()     {return getUInt16(6);}
+        public long getObjectCompressedSize() {return getUInt32(8);}
+        public int  getThumbFormat()          {return getUInt16(12);}
+        public long getThumbCompressedSize()  {return getUInt32(14);}
+        public long getThumbPixWidth()        {return getUInt32(18);}
+        public long getThumbPixHeight()       {return getUInt32(22);}
+        public long getImagePixWidth()        {return getUInt32(26);}
+        public long getImagePixHeight()       {return getUInt32(30);}
+        public long getImageBitDepth()        {return getUInt32(34);}
+        public long getParentObject()         {return getUInt32(38);}
+        public int  getAssociationType()      {return getUInt16(42);}
+        public long getAssociationDesc()      {return getUInt32(44);}
+        public long getSequenceNumber()       {return getUInt32(48);}
+        public String getFilename()           {return getString(FILENAME);}
+        public String getKeywords()           {return getString(KEYWORDS);}
+        public PtpDateTime getCaptureDate()      throws PtpExceptions.MalformedDataType {return getDateTime(CAPTURE_DATE);}
+        public PtpDateTime getModificationDate() throws PtpExceptions.MalformedDataType {return getDateTime(MODIFICATION_DATE);}
+
+        public ObjectFormatCode getObjectFormat() {return new ObjectFormatCode(getObjectFormatCode());}
+
+        private int getUInt16(int offset) {return (mData[offset] & 0xFF) | ((mData[offset + 1] & 0xFF) << 8);}
+        private long getUInt32(int offset) {return (getUInt16(offset) | ((long) getUInt16(offset + 2) << 16));}
+
+        private String getString(int index) {
+            int offset = mStringOffsets[index];
+            int length = mData[offset] & 0xFF;
+            if (length == 0) return "";
+            return new String(mData, offset + 1, 2 * (length - 1), StandardCharsets.UTF_16LE);
+        }
+
+        private PtpDateTime getDateTime(int index) throws PtpExceptions.MalformedDataType {
+            PtpDateTime dateTime = new PtpDateTime();
+            dateTime.mString = getString(index);
+            dateTime.parse();
+            return dateTime;
+        }
+
+        // fully decoded dataset, for when all fields are needed after all
+        public ObjectInfoDataSet toObjectInfo() throws PtpExceptions.MalformedDataType {
+            ObjectInfoDataSet objectInfo = new ObjectInfoDataSet();
+            objectInfo.mStorageID            = new StorageID(getStorageID());
+            objectInfo.mObjectFormatCode     = new ObjectFormatCode(getObjectFormatCode());
+            objectInfo.mProtectionStatus     = new UInt16(getProtectionStatus());
+            objectInfo.mObjectCompressedSize = new UInt32(getObjectCompressedSize());
+            objectInfo.mThumbFormat          = new ObjectFormatCode(getThumbFormat());
+            objectInfo.mThumbCompressedSize  = new UInt32(getThumbCompressedSize());
+            objectInfo.mThumbPixWidth        = new UInt32(getThumbPixWidth());
+            objectInfo.mThumbPixHeight       = new UInt32(getThumbPixHeight());
+            objectInfo.mImagePixWidth        = new UInt32(getImagePixWidth());
+            objectInfo.mImagePixHeight       = new UInt32(getImagePixHeight());
+            objectInfo.mImageBitDepth        = new UInt32(getImageBitDepth());
+            objectInfo.mParentObject         = new ObjectHandle(getParentObject());
+            objectInfo.mAssociationType      = new AssociationCode(getAssociationType());
+            objectInfo.mAssociationDesc      = new AssociationDesc((int) getAssociationDesc());
+            objectInfo.mSequenceNumber       = new UInt32(getSequenceNumber());
+            objectInfo.mFilename             = new PtpString(getFilename());
+            objectInfo.mCaptureDate          = getCaptureDate();
+            objectInfo.mModificationDate     = getModificationDate();
+            objectInfo.mKeywords             = new PtpString(getKeywords());
+            return objectInfo;
+        }
+
+        @Override protected void write(PtpTransport.PayloadBuffer out) {out.writeObject(mData);}
+        @Override protected void read(PtpTransport.ReadablePayloadBuffer in) throws PtpTransport.TransportDataError, PtpExceptions.MalformedDataType {
+            mData = in.readObject();
+            int offset = FIXED_LENGTH;
+            for (int i = 0; i < mStringOffsets.length; i++) {
+                if (offset >= mData.length) throw new PtpExceptions.MalformedDataType("ObjectInfo dataset truncated!");
+                mStringOffsets[i] = offset;
+                int length = mData[offset] & 0xFF;
+                offset += 1 + 2 * length;
+                if ((length != 0) && ((offset > mData.length) || (getUInt16(offset - 2) != 0)))
+                    throw new PtpExceptions.MalformedDataType("PtpString not null-terminated at stated length!");
+            }
+        }
+
+        @Override public String toString() {
+            return  "\n[ObjectInfoView"                                                                 + "]\n" +
+                    "    [StorageID: "             + String.format("0x%08x", getStorageID())            + "]\n" +
+                    "    [ObjectFormatCode: "      + String.format("0x%04x", getObjectFormatCode())     + "]\n" +
+                    "    [ObjectCompressedSize: "  + String.format("0x%08x", getObjectCompressedSize()) + "]\n" +
+                    "    [ParentObject: "          + String.format("0x%08x", getParentObject())         + "]\n" +
+                    "    [Filename: \""           + getFilename()                                      + "\"]\n";
+        }
+    }
+
+
     public abstract static class DevicePropDesc extends PtpDataType implements Serializable {
         // TODO...: implement (not abstract)
     }
@@ -406,7 +768,7 @@ public abstract class PtpDataType {
         public byte[] mObject = new byte[0];
 
         protected void write(PtpTransport.PayloadBuffer out) {out.writeObject(mObject);}
-        protected void read (PtpTransport.PayloadBuffer in ) {mObject = in.readObject();}
+        protected void read (PtpTransport.ReadablePayloadBuffer in ) {mObject = in.readObject();}
         @Override public String toString() {
             String objectString= "";
             for (int i = 0; (i < mObject.length) && (i < 16); i++) objectString += String.format("%02x ", mObject[i]);
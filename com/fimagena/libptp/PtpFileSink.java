@@ -0,0 +1,140 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+
+public class PtpFileSink implements PtpTransport.DirectDataSink, Closeable {
+
+    // Writes an object's data into a file region starting at the given offset. If requested, the region
+    // is memory-mapped once the data length is known (which grows the file to its final size) so the
+    // transport reads straight into the page cache. Objects beyond 2GB can't be mapped and use the channel.
+    // A file the sink opened itself is deleted on close() if the data never completed; regions of a
+    // caller's channel are left for the caller to account for.
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final boolean mOwnsChannel;
+    private final long mOffset;
+    private final boolean mUseMapping;
+
+    private MappedByteBuffer mMappedBuffer;
+    private long mPosition = 0;
+    private boolean mIsComplete = false;
+
+    public PtpFileSink(File file) throws IOException {this(file, false);}
+    public PtpFileSink(File file, boolean useMapping) throws IOException {
+        this(file, new RandomAccessFile(file, "rw").getChannel(), 0, useMapping, true);
+    }
+    public PtpFileSink(FileChannel channel, long offset, boolean useMapping) {this(null, channel, offset, useMapping, false);}
+
+    private PtpFileSink(File file, FileChannel channel, long offset, boolean useMapping, boolean ownsChannel) {
+        mFile = file;
+        mChannel = channel;
+        mOffset = offset;
+        mUseMapping = useMapping;
+        mOwnsChannel = ownsChannel;
+    }
+
+    public long getBytesWritten() {return mPosition;}
+
+    @Override public void onDataStart(long dataLength) throws IOException {
+        mPosition = 0;
+        mIsComplete = false;
+        unmap();
+        long end = mOffset + dataLength;
+        if (mOwnsChannel && (mChannel.size() > end)) mChannel.truncate(end);
+        if (mUseMapping && (dataLength > 0) && (dataLength <= Integer.MAX_VALUE))
+            mMappedBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, mOffset, dataLength);
+    }
+
+    @Override public void write(ByteBuffer data) throws IOException {
+        if (mMappedBuffer != null) {
+            int length = data.remaining();
+            mMappedBuffer.put(data);
+            mPosition += length;
+        }
+        else mPosition += mChannel.write(data, mOffset + mPosition);
+    }
+
+    @Override public long transferFrom(ReadableByteChannel channel, long count) throws IOException {
+        long transferred;
+        if (mMappedBuffer != null) {
+            mMappedBuffer.limit((int) Math.min(mMappedBuffer.capacity(), mMappedBuffer.position() + count));
+            transferred = channel.read(mMappedBuffer);
+            mMappedBuffer.limit(mMappedBuffer.capacity());
+        }
+        else transferred = mChannel.transferFrom(channel, mOffset + mPosition, count);
+        if (transferred > 0) mPosition += transferred;
+        return transferred;
+    }
+
+    @Override public void onDataEnd() throws IOException {
+        if (mMappedBuffer != null) mMappedBuffer.force();
+        unmap();
+        mIsComplete = true;
+    }
+
+    @Override public void close() throws IOException {
+        unmap();
+        if (!mOwnsChannel) return;
+        mChannel.close();
+        if (!mIsComplete) mFile.delete();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // There's no public API to release a mapping before it's garbage collected, which on Windows
+    // keeps the file locked and elsewhere holds on to address space - use the platform's hook where
+    // there is one and otherwise leave it to the GC
+
+    private static Method sUnmap;      // Unsafe.invokeCleaner(ByteBuffer) (Java 9+) or NioUtils.freeDirectBuffer(ByteBuffer) (Android)
+    private static Object sUnmapTarget;
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            sUnmap = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            sUnmapTarget = theUnsafe.get(null);
+        }
+        catch (Exception e) {
+            try {sUnmap = Class.forName("java.nio.NioUtils").getMethod("freeDirectBuffer", ByteBuffer.class);}
+            catch (Exception e2) {sUnmap = null;}
+        }
+    }
+
+    private void unmap() {
+        MappedByteBuffer buffer = mMappedBuffer;
+        mMappedBuffer = null;
+        if ((buffer == null) || (sUnmap == null)) return;
+        try {sUnmap.invoke(sUnmapTarget, buffer);}
+        catch (Exception e) {} // the GC will get it eventually
+    }
+}
@@ -0,0 +1,79 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+public class PtpFileSource implements PtpTransport.DirectDataSource, Closeable {
+
+    // Supplies an object's data from a file region. Transports that send through a channel get it
+    // via FileChannel.transferTo, which lets the kernel copy straight from the page cache to the socket.
+
+    private final FileChannel mChannel;
+    private final boolean mOwnsChannel;
+    private final long mOffset;
+    private final long mLength;
+
+    private long mPosition = 0;
+
+    public PtpFileSource(File file) throws IOException {
+        this(new RandomAccessFile(file, "r").getChannel(), true);
+    }
+    public PtpFileSource(FileChannel channel, long offset, long length) {this(channel, offset, length, false);}
+
+    private PtpFileSource(FileChannel channel, boolean ownsChannel) throws IOException {this(channel, 0, channel.size(), ownsChannel);}
+    private PtpFileSource(FileChannel channel, long offset, long length, boolean ownsChannel) {
+        mChannel = channel;
+        mOffset = offset;
+        mLength = length;
+        mOwnsChannel = ownsChannel;
+    }
+
+    public long getBytesRead() {return mPosition;}
+
+    @Override public long getDataLength() {return mLength;}
+
+    @Override public int read(ByteBuffer data) throws IOException {
+        if (mPosition >= mLength) return -1;
+        int limit = data.limit();
+        if (data.remaining() > mLength - mPosition) data.limit(data.position() + (int) (mLength - mPosition));
+        int read = mChannel.read(data, mOffset + mPosition);
+        data.limit(limit);
+        if (read > 0) mPosition += read;
+        return read;
+    }
+
+    @Override public long transferTo(WritableByteChannel channel, long count) throws IOException {
+        long transferred = mChannel.transferTo(mOffset + mPosition, Math.min(count, mLength - mPosition), channel);
+        mPosition += transferred;
+        return transferred;
+    }
+
+    @Override public void close() throws IOException {
+        if (mOwnsChannel) mChannel.close();
+    }
+}
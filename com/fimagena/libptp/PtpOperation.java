@@ -19,8 +19,10 @@
 
 package com.fimagena.libptp;
 
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,12 +30,11 @@ import java.util.logging.Logger;
 public class PtpOperation {
 
     private final static Logger LOG = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-    static {LOG.setLevel(Level.ALL);}
 
     // ---------------------------------------------------------------------------------------------
     // Operation codes
 
-    public final static Map<Integer, String> OPSCODE_DESCRIPTIONS = new HashMap<>(29);
+    public final static Map<Integer, String> OPSCODE_DESCRIPTIONS = new ConcurrentHashMap<>(29); // vendors register at runtime
 
     public final static int OPSCODE_Undefined               = 0x1000; static {OPSCODE_DESCRIPTIONS.put(OPSCODE_Undefined             , "Undefined"           );}
     public final static int OPSCODE_GetDeviceInfo           = 0x1001; static {OPSCODE_DESCRIPTIONS.put(OPSCODE_GetDeviceInfo         , "GetDeviceInfo"       );}
@@ -115,13 +116,48 @@ public class PtpOperation {
             new PtpOperation(OPSCODE_GetObjectInfo   , 1, 1, 0, DataFlow.DATA_IN, PtpDataType.ObjectInfoDataSet.class , new int[] {RSPCODE_OK, RSPCODE_OperationNotSupported, RSPCODE_SessionNotOpen, RSPCODE_InvalidTransactionID, RSPCODE_InvalidObjectHandle, RSPCODE_StoreNotAvailable, RSPCODE_ParameterNotSupported}),
             new PtpOperation(OPSCODE_GetObject       , 1, 1, 0, DataFlow.DATA_IN, PtpDataType.Object.class            , new int[] {RSPCODE_OK, RSPCODE_OperationNotSupported, RSPCODE_SessionNotOpen, RSPCODE_InvalidTransactionID, RSPCODE_InvalidObjectHandle, RSPCODE_InvalidParameter, RSPCODE_StoreNotAvailable, RSPCODE_ParameterNotSupported, RSPCODE_IncompleteTransfer}),
             new PtpOperation(OPSCODE_GetThumb        , 1, 1, 0, DataFlow.DATA_IN, PtpDataType.Object.class            , new int[] {RSPCODE_OK, RSPCODE_OperationNotSupported, RSPCODE_SessionNotOpen, RSPCODE_InvalidTransactionID, RSPCODE_InvalidObjectHandle, RSPCODE_NoThumbnailPresent, RSPCODE_InvalidObjectFormatCode, RSPCODE_StoreNotAvailable, RSPCODE_ParameterNotSupported}),
-            new PtpOperation(OPSCODE_InitiateCapture , 2, 2, 0                                                        , new int[] {RSPCODE_OK, RSPCODE_OperationNotSupported, RSPCODE_SessionNotOpen, RSPCODE_InvalidTransactionID, RSPCODE_InvalidStorageID, RSPCODE_StoreFull, RSPCODE_InvalidObjectFormatCode, RSPCODE_InvalidParameter, RSPCODE_StoreNotAvailable, RSPCODE_InvalidCodeFormat, RSPCODE_DeviceBusy, RSPCODE_ParameterNotSupported})
+            new PtpOperation(OPSCODE_SendObjectInfo  , 0, 2, 3, DataFlow.DATA_OUT, PtpDataType.ObjectInfoDataSet.class, new int[] {RSPCODE_OK, RSPCODE_OperationNotSupported, RSPCODE_SessionNotOpen, RSPCODE_InvalidTransactionID, RSPCODE_AccessDenied, RSPCODE_InvalidStorageID, RSPCODE_StoreReadOnly, RSPCODE_StoreFull, RSPCODE_InvalidObjectFormatCode, RSPCODE_StoreNotAvailable, RSPCODE_ParameterNotSupported, RSPCODE_InvalidParentObject, RSPCODE_SpecificationOfDestinationUnsupported, RSPCODE_DeviceBusy}),
+            new PtpOperation(OPSCODE_SendObject      , 0, 0, 0, DataFlow.DATA_OUT, PtpDataType.Object.class           , new int[] {RSPCODE_OK, RSPCODE_OperationNotSupported, RSPCODE_SessionNotOpen, RSPCODE_InvalidTransactionID, RSPCODE_StoreFull, RSPCODE_StoreNotAvailable, RSPCODE_NoValidObjectInfo, RSPCODE_IncompleteTransfer, RSPCODE_DeviceBusy, RSPCODE_ParameterNotSupported}),
+            new PtpOperation(OPSCODE_InitiateCapture , 2, 2, 0                                                        , new int[] {RSPCODE_OK, RSPCODE_OperationNotSupported, RSPCODE_SessionNotOpen, RSPCODE_InvalidTransactionID, RSPCODE_InvalidStorageID, RSPCODE_StoreFull, RSPCODE_InvalidObjectFormatCode, RSPCODE_InvalidParameter, RSPCODE_StoreNotAvailable, RSPCODE_InvalidCodeFormat, RSPCODE_DeviceBusy, RSPCODE_ParameterNotSupported}),
+            new PtpOperation(OPSCODE_GetPartialObject, 3, 3, 1, DataFlow.DATA_IN, PtpDataType.Object.class            , new int[] {RSPCODE_OK, RSPCODE_OperationNotSupported, RSPCODE_SessionNotOpen, RSPCODE_InvalidTransactionID, RSPCODE_InvalidObjectHandle, RSPCODE_InvalidObjectFormatCode, RSPCODE_InvalidParameter, RSPCODE_StoreNotAvailable, RSPCODE_DeviceBusy, RSPCODE_ParameterNotSupported})
     };
 
+    // Lookup: standard operation codes index a dense table directly, vendor codes go through a map.
+    // Both are only ever replaced/added to, so lookups need no locking.
+
+    private final static int OPSCODE_STANDARD_BASE  = 0x1000;
+    private final static int OPSCODE_STANDARD_RANGE = 0x1000;
+
+    private static volatile PtpOperation[] sStandardOperations = new PtpOperation[OPSCODE_STANDARD_RANGE];
+    private final static Map<Integer, PtpOperation> VENDOR_OPERATIONS = new ConcurrentHashMap<>();
+
+    static {for (PtpOperation operation : PTP_OPERATIONS) addOperation(operation);}
+
+    private static synchronized void addOperation(PtpOperation operation) {
+        int index = operation.mOperationCode.mValue - OPSCODE_STANDARD_BASE;
+        if ((index >= 0) && (index < OPSCODE_STANDARD_RANGE)) {
+            PtpOperation[] operations = sStandardOperations.clone();
+            operations[index] = operation;
+            sStandardOperations = operations;
+        }
+        else VENDOR_OPERATIONS.put(operation.mOperationCode.mValue, operation);
+    }
+
+    // vendor extensions (or responders deviating from the standard) register their operations here
+    public static void registerOperation(int operationCode, String description, int minNumberRequestParameters, int maxNumberRequestParameters, int numberResponseParameters, int[] allowedRspCodes) {
+        registerOperation(operationCode, description, minNumberRequestParameters, maxNumberRequestParameters, numberResponseParameters, DataFlow.NONE, null, allowedRspCodes);
+    }
+    public static void registerOperation(int operationCode, String description, int minNumberRequestParameters, int maxNumberRequestParameters, int numberResponseParameters, DataFlow dataFlow, Class<? extends PtpDataType> dataType, int[] allowedRspCodes) {
+        if ((dataType != null) && (PtpDataType.getCodec(dataType) == null))
+            throw new IllegalArgumentException("No codec registered for " + dataType.getName() + "!");
+        if (description != null) OPSCODE_DESCRIPTIONS.put(operationCode, description);
+        addOperation(new PtpOperation(operationCode, minNumberRequestParameters, maxNumberRequestParameters, numberResponseParameters, dataFlow, dataType, allowedRspCodes));
+    }
+
     // ---------------------------------------------------------------------------------------------
     // Operation definition
 
-    protected enum DataFlow {NONE, DATA_OUT, DATA_IN}
+    public enum DataFlow {NONE, DATA_OUT, DATA_IN}
 
     protected PtpDataType.OperationCode mOperationCode;
     protected int mMinNumberRequestParameters;
@@ -129,27 +165,64 @@ public class PtpOperation {
     protected int mNumberResponseParameters;
     protected DataFlow mDataFlow;
     protected Class mDataType;
-    protected int[] mAllowedRspCodes;
+    protected PtpDataType.Codec<?> mDataCodec;
+    protected int mRspCodeBase;
+    protected BitSet mAllowedRspCodes;
 
     public class Request {
         protected long[] mParameters = new long[0];
         protected PtpDataType mData;
+        protected PtpTransport.DataSink mDataSink;
+        protected PtpTransport.DataSource mDataSource;
+        protected PtpDataType.Codec<?> mResponseDataCodec = mDataCodec;
+        protected volatile long mTransactionId = -1;
+        protected final PtpTransferProgress mProgress = new PtpTransferProgress();
+        protected volatile boolean mIsCancelled = false;
+        protected volatile PtpTransport.Session mSession;
+        protected long mTimeout = 0;
 
         public int getOperationCode() {return mOperationCode.mValue;}
+        // assigned by the transport as the request goes out, -1 before
+        public long getTransactionId() {return mTransactionId;}
+        public void setTransactionId(long transactionId) {mTransactionId = transactionId;}
+        // bytes of the data phase transferred so far, updated by the transport while the transaction runs
+        public PtpTransferProgress getProgress() {return mProgress;}
+
+        // the request is its own cancel handle: if it's running, the transport aborts the transaction; if
+        // it hasn't gone out yet, it won't
+        public void cancel() throws PtpTransport.TransportIOError {
+            mIsCancelled = true;
+            PtpTransport.Session session = mSession;
+            if (session != null) session.cancelTransaction(this);
+        }
+        public boolean isCancelled() {return mIsCancelled;}
+        // set by the transport while the transaction is running
+        public void setSession(PtpTransport.Session session) {mSession = session;}
+
+        // ms - the transport's default deadline for this kind of operation is used if 0, none if negative
+        public long getTimeout() {return mTimeout;}
+        public void setTimeout(long timeout) {mTimeout = timeout;}
         public long[] getParameters() {return mParameters;}
         public void setParameters(long[] parameters) {mParameters = parameters;}
         public boolean hasData() {return mDataFlow == DataFlow.DATA_OUT;}
         public PtpDataType getData() {return mData;}
+        public PtpTransport.DataSink getDataSink() {return mDataSink;}
+        public void setDataSink(PtpTransport.DataSink dataSink) {mDataSink = dataSink;}
+        public PtpTransport.DataSource getDataSource() {return mDataSource;}
+        public void setDataSource(PtpTransport.DataSource dataSource) {mDataSource = dataSource;}
+        public void setResponseDataCodec(PtpDataType.Codec<?> codec) {mResponseDataCodec = codec;} // decode into an alternative type, e.g. a view
 
         public void validate() throws PtpExceptions.PtpProtocolViolation {
             if ((mParameters == null) || (mParameters.length > mMaxNumberRequestParameters) || (mParameters.length < mMinNumberRequestParameters))
                 throw new PtpExceptions.PtpProtocolViolation("Invalid number of request parameters given!");
-            if ((mDataFlow != DataFlow.DATA_OUT) && (mData != null))
+            if ((mDataFlow != DataFlow.DATA_OUT) && ((mData != null) || (mDataSource != null)))
                 throw new PtpExceptions.PtpProtocolViolation("Request has data but doesn't need any!");
-            if ((mDataFlow == DataFlow.DATA_OUT) && (mData == null))
+            if ((mDataFlow == DataFlow.DATA_OUT) && (mData == null) && (mDataSource == null))
                 throw new PtpExceptions.PtpProtocolViolation("Request requires data but doesn't has any!");
-            if ((mDataFlow == DataFlow.DATA_OUT) && !mData.getClass().equals(mDataType))
+            if ((mDataFlow == DataFlow.DATA_OUT) && (mData != null) && !mData.getClass().equals(mDataType))
                 throw new PtpExceptions.PtpProtocolViolation("Request data is of wrong class type!");
+            if ((mDataFlow != DataFlow.DATA_IN) && (mDataSink != null))
+                throw new PtpExceptions.PtpProtocolViolation("Request has data sink but doesn't receive any data!");
         }
 
         public String toString() {return "[OpsReq][OpsCode: " + mOperationCode + ", Parameters: " + arrayToString(mParameters) + ", Data: " + mData + "]";}
@@ -158,8 +231,10 @@ public class PtpOperation {
     public class Response {
         protected PtpDataType.ResponseCode mRspCode = new PtpDataType.ResponseCode(RSPCODE_Undefined);
         protected long[] mParameters = new long[0];
-        protected PtpTransport.PayloadBuffer mDataBuffer;
+        protected PtpTransport.ReadablePayloadBuffer mDataBuffer;
         private PtpDataType mData;
+        private boolean mIsStreamed; // data went straight into the request's sink
+        private PtpDataType.Codec<?> mResponseDataCodec = mDataCodec;
 
         public boolean isSuccess() {return mRspCode.mValue == RSPCODE_OK;}
         public int getResponseCode() {return mRspCode.mValue;}
@@ -167,23 +242,26 @@ public class PtpOperation {
         public long[] getParameters() {return mParameters;}
         public void setParameters(long[] parameters) {mParameters = parameters;}
         public PtpDataType getData() {return mData;}
-        public void setData(PtpTransport.PayloadBuffer buffer) {mDataBuffer = buffer;}
+        public void setData(PtpTransport.ReadablePayloadBuffer buffer) {mDataBuffer = buffer;}
 
         public void validate() throws PtpExceptions.PtpProtocolViolation {
-            if (!intArrayContains(mAllowedRspCodes, mRspCode.mValue))
+            if (!isAllowedRspCode(mRspCode.mValue))
                 throw new PtpExceptions.PtpProtocolViolation("Invalid response code (OpsCode: " + mOperationCode + ", Rspcode: " + mRspCode + ")");
             if ((mParameters == null) || (mParameters.length != mNumberResponseParameters))
                 throw new PtpExceptions.PtpProtocolViolation("Invalid number of response parameters received!");
             if ((mDataFlow != DataFlow.DATA_IN) && (mDataBuffer != null))
                 throw new PtpExceptions.PtpProtocolViolation("Received data, didn't expect any!");
-            if (mDataFlow == DataFlow.DATA_IN) {
+            if ((mDataFlow == DataFlow.DATA_IN) && !mIsStreamed) {
                 if (mDataBuffer == null) throw new PtpExceptions.PtpProtocolViolation("Expected data but didn't receive any!");
-                try {mData = (PtpDataType) mDataType.newInstance();}
-                catch (Exception e) {throw new PtpExceptions.PtpProtocolViolation("Error instantiating result data class!", e);}
-                try {mData.read(mDataBuffer); mDataBuffer = null;}
+                if (mResponseDataCodec == null) {
+                    mDataBuffer.release(); mDataBuffer = null;
+                    throw new PtpExceptions.PtpProtocolViolation("No codec registered for result data class!");
+                }
+                try {mData = mResponseDataCodec.decode(mDataBuffer);}
                 catch (Exception e) {throw new PtpExceptions.PtpProtocolViolation("Error parsing response data!", e);}
+                finally {mDataBuffer.release(); mDataBuffer = null;}
             }
-            if (mData != null) LOG.info("PTP: Response data received: " + mData);
+            if ((mData != null) && LOG.isLoggable(Level.FINE)) LOG.fine("PTP: Response data received: " + mData);
         }
 
         public String toString() {return "[OpsRsp][RpsCode: " + mRspCode + ", Parameters: " + arrayToString(mParameters) + ", Data: " + mData + "]";}
@@ -198,11 +276,17 @@ public class PtpOperation {
     private PtpOperation(int operationCode, int minNumberRequestParameters, int maxNumberRequestParameters, int numberResponseParameters, DataFlow dataFlow, Class<? extends PtpDataType> dataType, int[] allowedRspCodes) {
         mOperationCode = new PtpDataType.OperationCode(operationCode);
         mMinNumberRequestParameters = minNumberRequestParameters;
-        mMinNumberRequestParameters = maxNumberRequestParameters;
+        mMaxNumberRequestParameters = maxNumberRequestParameters;
         mDataType = dataType;
+        mDataCodec = dataType == null ? null : PtpDataType.getCodec(dataType);
         mDataFlow = dataFlow;
-        mAllowedRspCodes = allowedRspCodes;
         mNumberResponseParameters = numberResponseParameters;
+
+        // response codes as bitset relative to the lowest one, so validating a response is a single lookup
+        mRspCodeBase = Integer.MAX_VALUE;
+        for (int rspCode : allowedRspCodes) mRspCodeBase = Math.min(mRspCodeBase, rspCode);
+        mAllowedRspCodes = new BitSet();
+        for (int rspCode : allowedRspCodes) mAllowedRspCodes.set(rspCode - mRspCodeBase);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -217,23 +301,24 @@ public class PtpOperation {
     private Response createRespone() {return new Response();}
     public static Response createResponse(Request request) {
         PtpOperation operation = getOperation(request.getOperationCode());
-        return operation == null ? null : operation.createRespone();
+        if (operation == null) return null;
+        Response response = operation.createRespone();
+        response.mIsStreamed = request.getDataSink() != null;
+        response.mResponseDataCodec = request.mResponseDataCodec;
+        return response;
     }
 
     // ---------------------------------------------------------------------------------------------
     // Helper functions
 
-    private boolean intArrayContains(int[] intArray, int element) {
-        for (int i : intArray) if (i == element) return true;
-        return false;
+    private boolean isAllowedRspCode(int rspCode) {
+        return (rspCode >= mRspCodeBase) && mAllowedRspCodes.get(rspCode - mRspCodeBase);
     }
 
     private static PtpOperation getOperation(int operationCode) {
-        PtpOperation operation = null;
-        for (PtpOperation o : PTP_OPERATIONS)
-            if (o.mOperationCode.mValue == operationCode) {operation = o; break;}
-        if (operation == null) return null;
-        return operation;
+        int index = operationCode - OPSCODE_STANDARD_BASE;
+        if ((index >= 0) && (index < OPSCODE_STANDARD_RANGE)) return sStandardOperations[index];
+        return VENDOR_OPERATIONS.get(operationCode);
     }
 
     private static String arrayToString(long[] params) {
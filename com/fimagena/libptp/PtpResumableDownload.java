@@ -0,0 +1,153 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+
+public class PtpResumableDownload {
+
+    // Downloads an object in GetPartialObject-sized steps and records after each step how much of it
+    // safely made it to disk. The checkpoint lives next to the target file, so when the connection
+    // drops, download() can be called again with a session from a new connection and picks up at
+    // the last committed offset - provided the object still looks the same (size and capture date).
+    // PTP reports sizes and addresses ranges with 32bit, limiting this to objects below 4GB.
+
+    public final static int DEFAULT_COMMIT_SIZE = 8 * 1024 * 1024;
+    public final static String CHECKPOINT_SUFFIX = ".ptpresume";
+
+    public static class Checkpoint {
+        public long mObjectHandle;
+        public long mObjectSize;
+        public String mCaptureDate;
+        public long mBytesCommitted;
+
+        public Checkpoint(long objectHandle, long objectSize, String captureDate, long bytesCommitted) {
+            mObjectHandle = objectHandle;
+            mObjectSize = objectSize;
+            mCaptureDate = captureDate;
+            mBytesCommitted = bytesCommitted;
+        }
+
+        public boolean matches(long objectHandle, long objectSize, String captureDate) {
+            return (mObjectHandle == objectHandle) && (mObjectSize == objectSize) && mCaptureDate.equals(captureDate);
+        }
+
+        public static Checkpoint load(File file) throws IOException {
+            if (!file.exists()) return null;
+            Properties properties = new Properties();
+            FileInputStream in = new FileInputStream(file);
+            try {properties.load(in);}
+            finally {in.close();}
+            try {
+                return new Checkpoint(Long.parseLong(properties.getProperty("handle")), Long.parseLong(properties.getProperty("size")),
+                        properties.getProperty("captureDate", ""), Long.parseLong(properties.getProperty("committed")));
+            }
+            catch (NumberFormatException e) {return null;} // unreadable checkpoint --> start over
+        }
+
+        public void save(File file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("handle", Long.toString(mObjectHandle));
+            properties.setProperty("size", Long.toString(mObjectSize));
+            properties.setProperty("captureDate", mCaptureDate);
+            properties.setProperty("committed", Long.toString(mBytesCommitted));
+
+            // write aside and rename, so a crash leaves either the old or the new checkpoint
+            File tmpFile = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                properties.store(out, null);
+                out.getFD().sync();
+            }
+            finally {out.close();}
+            if (!tmpFile.renameTo(file)) {
+                file.delete();
+                if (!tmpFile.renameTo(file)) throw new IOException("Could not write checkpoint " + file + "!");
+            }
+        }
+    }
+
+    private final PtpDataType.ObjectHandle mObjectHandle;
+    private final File mFile;
+    private final File mCheckpointFile;
+
+    private int mCommitSize = DEFAULT_COMMIT_SIZE;
+    private Checkpoint mCheckpoint;
+
+    public PtpResumableDownload(PtpDataType.ObjectHandle objectHandle, File file) {
+        mObjectHandle = objectHandle;
+        mFile = file;
+        mCheckpointFile = getCheckpointFile(file);
+    }
+
+    public static File getCheckpointFile(File file) {return new File(file.getPath() + CHECKPOINT_SUFFIX);}
+
+    public void setCommitSize(int commitSize) {mCommitSize = commitSize;}
+
+    public long getBytesCommitted() {return mCheckpoint == null ? 0 : mCheckpoint.mBytesCommitted;}
+    public boolean isComplete() {return (mCheckpoint != null) && (mCheckpoint.mBytesCommitted == mCheckpoint.mObjectSize);}
+
+    public void download(PtpSession session, PtpSession.DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed, IOException {
+        PtpDataType.ObjectInfoDataSet objectInfo = session.getObjectInfo(mObjectHandle);
+        long objectSize = objectInfo.mObjectCompressedSize.mValue;
+        String captureDate = objectInfo.mCaptureDate.mString;
+        // 32bit size field: objects of 4GB or more report 0xFFFFFFFF (and GetPartialObject couldn't reach past that anyway)
+        if (objectSize >= 0xFFFFFFFFL)
+            throw new PtpExceptions.PtpProtocolViolation("Object too large for GetPartialObject (reported size " + objectSize + " bytes)!");
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+
+            // only trust a checkpoint for the same object whose committed data is actually still there
+            mCheckpoint = Checkpoint.load(mCheckpointFile);
+            if ((mCheckpoint == null) || !mCheckpoint.matches(mObjectHandle.mValue, objectSize, captureDate) || (channel.size() < mCheckpoint.mBytesCommitted)) {
+                mCheckpoint = new Checkpoint(mObjectHandle.mValue, objectSize, captureDate, 0);
+                mCheckpoint.save(mCheckpointFile);
+            }
+            if (channel.size() > objectSize) channel.truncate(objectSize);
+
+            while (mCheckpoint.mBytesCommitted < objectSize) {
+                long offset = mCheckpoint.mBytesCommitted;
+                long length = Math.min(mCommitSize, objectSize - offset);
+                PtpFileSink sink = new PtpFileSink(channel, offset, false);
+                long loaded = session.getPartialObject(mObjectHandle, offset, length, sink, null);
+                if ((loaded <= 0) || (loaded > length) || (sink.getBytesWritten() != loaded))
+                    throw new PtpExceptions.PtpProtocolViolation("GetPartialObject returned " + loaded + " bytes at offset " + offset + "!");
+
+                // data has to be on disk before the checkpoint claims it is
+                channel.force(false);
+                mCheckpoint.mBytesCommitted += loaded;
+                mCheckpoint.save(mCheckpointFile);
+                if (listener != null) listener.onDataLoaded(mCheckpoint.mBytesCommitted, objectSize);
+            }
+        }
+        finally {randomAccessFile.close();}
+
+        mCheckpointFile.delete();
+    }
+}
@@ -0,0 +1,172 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+
+public class PtpSegmentedDownload {
+
+    // Downloads a single object as a series of ranges fetched concurrently with GetPartialObject, each
+    // loader on a session of its own (for PTP/IP that means its own TCP connection, which helps with
+    // responders throttling per connection). Ranges are handed out one at a time, so faster
+    // connections simply take on more of them. PTP addresses ranges with 32bit, limiting this to 4GB.
+
+    public final static int DEFAULT_SESSIONS = 3;
+    public final static int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final static Logger LOG = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private final PtpConnection mConnection;
+    private final PtpDataType.ObjectHandle mObjectHandle;
+    private final long mObjectSize;
+
+    private int mSessions = DEFAULT_SESSIONS;
+    private int mSegmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private final AtomicLong mNextOffset = new AtomicLong();
+    private final AtomicReference<Exception> mError = new AtomicReference<>();
+    private long mLoaded;
+
+    private class SegmentLoader implements Runnable {
+        private final PtpSession mSession;
+        private final FileChannel mChannel;
+        private final long mFileOffset;
+        private final PtpSession.DataLoadListener mListener;
+
+        SegmentLoader(PtpSession session, FileChannel channel, long fileOffset, PtpSession.DataLoadListener listener) {
+            mSession = session;
+            mChannel = channel;
+            mFileOffset = fileOffset;
+            mListener = listener;
+        }
+
+        public void run() {
+            try {
+                long start;
+                while ((mError.get() == null) && ((start = mNextOffset.getAndAdd(mSegmentSize)) < mObjectSize)) {
+                    long end = Math.min(start + mSegmentSize, mObjectSize);
+
+                    // responders may send less than asked for --> keep asking for the rest of the range
+                    while (start < end) {
+                        PtpFileSink sink = new PtpFileSink(mChannel, mFileOffset + start, false);
+                        long loaded = mSession.getPartialObject(mObjectHandle, start, end - start, sink, null);
+                        if ((loaded <= 0) || (loaded > end - start) || (sink.getBytesWritten() != loaded))
+                            throw new PtpExceptions.PtpProtocolViolation("GetPartialObject returned " + loaded + " bytes for range " + start + "-" + end + "!");
+                        start += loaded;
+                        onSegmentLoaded(loaded, mListener);
+                    }
+                }
+            }
+            catch (Exception e) {mError.compareAndSet(null, e);}
+        }
+    }
+
+    public PtpSegmentedDownload(PtpConnection connection, PtpDataType.ObjectHandle objectHandle, long objectSize) {
+        mConnection = connection;
+        mObjectHandle = objectHandle;
+        mObjectSize = objectSize;
+    }
+
+    public void setSessions(int sessions) {mSessions = sessions;}
+    public void setSegmentSize(int segmentSize) {mSegmentSize = segmentSize;}
+
+    public void download(File file, PtpSession.DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed, IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > mObjectSize) channel.truncate(mObjectSize);
+            download(channel, 0, listener);
+        }
+        finally {randomAccessFile.close();}
+    }
+
+    // the listener is called from the loader threads (though never concurrently)
+    public void download(FileChannel channel, long fileOffset, PtpSession.DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed, IOException {
+        if (mObjectSize > 0xFFFFFFFFL)
+            throw new PtpExceptions.PtpProtocolViolation("Object too large for GetPartialObject (" + mObjectSize + " bytes)!");
+
+        mNextOffset.set(0);
+        mError.set(null);
+        mLoaded = 0;
+
+        // allocate the whole region up front so the loaders never have to extend the file
+        if ((mObjectSize > 0) && (channel.size() < fileOffset + mObjectSize))
+            channel.write(ByteBuffer.allocate(1), fileOffset + mObjectSize - 1);
+
+        // open sessions here so that failures surface right away; make do with fewer if the responder won't give us more
+        long segments = (mObjectSize + mSegmentSize - 1) / mSegmentSize;
+        int sessions = (int) Math.max(1, Math.min(mSessions, segments));
+        List<SegmentLoader> loaders = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            try {loaders.add(new SegmentLoader(mConnection.openSession(), channel, fileOffset, listener));}
+            catch (PtpTransport.TransportError | PtpExceptions.PtpProtocolViolation e) {
+                if (loaders.isEmpty()) throw e;
+                LOG.warning("PTP: Could only open " + loaders.size() + " download sessions: " + e.getMessage());
+                break;
+            }
+        }
+
+        // loaders run on the connection's threads (virtual ones, if so configured); their sessions are closed
+        // here, one after the other, once none of them is in use any more
+        List<Thread> threads = new ArrayList<>(loaders.size());
+        try {
+            for (SegmentLoader loader : loaders) {
+                Thread thread = mConnection.getThreadFactory().newThread(loader);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+        finally {
+            boolean interrupted = false;
+            for (Thread thread : threads) {
+                while (true) {try {thread.join(); break;} catch (InterruptedException e) {interrupted = true;}}
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            for (SegmentLoader loader : loaders) {
+                try {loader.mSession.close();}
+                catch (Exception e) {LOG.warning("PTP: Could not close download session: " + e.getMessage());}
+            }
+        }
+
+        Exception error = mError.get();
+        if (error == null) return;
+        if (error instanceof PtpTransport.TransportError) throw (PtpTransport.TransportError) error;
+        if (error instanceof PtpExceptions.PtpProtocolViolation) throw (PtpExceptions.PtpProtocolViolation) error;
+        if (error instanceof PtpExceptions.OperationFailed) throw (PtpExceptions.OperationFailed) error;
+        if (error instanceof IOException) throw (IOException) error;
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        throw new IllegalStateException("Segment download failed!", error);
+    }
+
+    private synchronized void onSegmentLoaded(long loaded, PtpSession.DataLoadListener listener) {
+        mLoaded += loaded;
+        if (listener != null) listener.onDataLoaded(mLoaded, mObjectSize);
+    }
+}
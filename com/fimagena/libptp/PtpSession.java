@@ -19,44 +19,95 @@
 
 package com.fimagena.libptp;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
 
 public class PtpSession {
 
     public interface DataLoadListener {void onDataLoaded(long loaded, long expected);}
+    // ...also told about throughput and ETA
+    public interface ProgressListener extends DataLoadListener {void onProgress(PtpTransferProgress progress);}
+    // told about every request before it goes out
+    public interface RequestObserver {void onRequest(PtpOperation.Request request);}
 
     private PtpConnection mConnection;
     private PtpTransport.Session mSession;
+    private PtpSession mOwner;
+    private RequestObserver mRequestObserver;
 
 
     protected PtpSession(PtpConnection connection, PtpTransport.Session session) {
         mConnection = connection;
         mSession = session;
+        mOwner = this;
+    }
+    private PtpSession(PtpSession owner, RequestObserver observer) {
+        mConnection = owner.mConnection;
+        mSession = owner.mSession;
+        mOwner = owner.mOwner;
+        mRequestObserver = observer;
     }
+
+    // a view of this session that reports the requests run through it to the given observer
+    public PtpSession observedBy(RequestObserver observer) {return new PtpSession(this, observer);}
     // TODO..: check deviceInfo which functions are allowed
 
     public void close() throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation {
         mSession.close();
-        mConnection.onSessionClosed(this);
+        mConnection.onSessionClosed(mOwner);
     }
 
     // -----------------------------------------------------------------------------------------
-    // PTP transaction
-    // TODO: asynchronous requests should return transactionID as well
+    // PTP transaction (see PtpAsyncSession for asynchronous use)
 
     public PtpConnection getConnection() {return mConnection;}
 
+    // every transaction goes through here, so that an observer learns the requests it runs
+    private PtpOperation.Response execute(PtpOperation.Request request) throws PtpTransport.TransportError {return execute(request, null);}
+    private PtpOperation.Response execute(PtpOperation.Request request, PtpTransport.Session.DataLoadListener listener) throws PtpTransport.TransportError {
+        if (mRequestObserver != null) mRequestObserver.onRequest(request);
+        return mSession.executeTransaction(request, listener);
+    }
+
+    private static PtpTransport.Session.DataLoadListener adapt(DataLoadListener listener) {
+        if (listener == null) return null;
+        return new PtpTransport.Session.DataLoadListener() {
+            @Override public void onDataLoaded(PtpOperation.Request request, long loaded, long expected) {
+                listener.onDataLoaded(loaded, expected);
+                if (listener instanceof ProgressListener) ((ProgressListener) listener).onProgress(request.getProgress());
+            }
+        };
+    }
+
+    // for operations without a method of their own, e.g. vendor operations registered with PtpOperation
+    public PtpOperation.Response executeOperation(PtpOperation.Request request) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation {
+        PtpOperation.Response response = execute(request);
+        response.validate();
+        return response;
+    }
+
     public PtpDataType.StorageID[] getStorageIDs() throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
-        PtpOperation.Response response = mSession.executeTransaction(PtpOperation.createRequest(PtpOperation.OPSCODE_GetStorageIDs));
+        return getStorageIdArray().toStorageIDs();
+    }
+    public PtpDataType.StorageIdArray getStorageIdArray() throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        PtpOperation.Response response = execute(PtpOperation.createRequest(PtpOperation.OPSCODE_GetStorageIDs));
         response.validate();
         if (!response.isSuccess())
             throw new PtpExceptions.OperationFailed("GetStorageIds", response.getResponseCode());
-        return ((PtpDataType.StorageIdArray) response.getData()).mArrayData;
+        return (PtpDataType.StorageIdArray) response.getData();
     }
 
     public PtpDataType.StorageInfoDataSet getStorageInfo(PtpDataType.StorageID storageId) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
         PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_GetStorageInfo);
         request.mParameters = new long[]{storageId.mValue};
-        PtpOperation.Response response = mSession.executeTransaction(request);
+        PtpOperation.Response response = execute(request);
         response.validate();
         if (!response.isSuccess())
             throw new PtpExceptions.OperationFailed("GetStorageInfo", response.getResponseCode());
@@ -78,7 +129,7 @@ public class PtpSession {
     public long getNumObjects(PtpDataType.StorageID storageId, PtpDataType.ObjectFormatCode objectFormat, PtpDataType.ObjectHandle associationHandle) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
         PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_GetNumObjects);
         request.mParameters = new long[]{storageId.mValue, objectFormat.mValue, associationHandle.mValue};
-        PtpOperation.Response response = mSession.executeTransaction(request);
+        PtpOperation.Response response = execute(request);
         response.validate();
         if (!response.isSuccess())
             throw new PtpExceptions.OperationFailed("GetNumObjects", response.getResponseCode());
@@ -98,71 +149,257 @@ public class PtpSession {
     }
 
     public PtpDataType.ObjectHandle[] getObjectHandles(PtpDataType.StorageID storageId, PtpDataType.ObjectFormatCode objectFormat, PtpDataType.ObjectHandle associationHandle) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        return getObjectHandleArray(storageId, objectFormat, associationHandle).toObjectHandles();
+    }
+
+    // handles as primitive array - cheaper than getObjectHandles() for large listings
+    public PtpDataType.ObjectHandleArray getObjectHandleArray(PtpDataType.StorageID storageId) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        return getObjectHandleArray(storageId, new PtpDataType.ObjectFormatCode(), new PtpDataType.ObjectHandle());
+    }
+    public PtpDataType.ObjectHandleArray getObjectHandleArray(PtpDataType.StorageID storageId, PtpDataType.ObjectFormatCode objectFormat, PtpDataType.ObjectHandle associationHandle) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
         PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_GetObjectHandles);
         request.mParameters = new long[]{storageId.mValue, objectFormat.mValue, associationHandle.mValue};
-        PtpOperation.Response response = mSession.executeTransaction(request);
+        PtpOperation.Response response = execute(request);
         response.validate();
         if (!response.isSuccess())
             throw new PtpExceptions.OperationFailed("GetObjectHandles", response.getResponseCode());
-        return ((PtpDataType.ObjectHandleArray) response.getData()).mArrayData;
+        return (PtpDataType.ObjectHandleArray) response.getData();
     }
 
     public PtpDataType.ObjectInfoDataSet getObjectInfo(PtpDataType.ObjectHandle objectHandle) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
         PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_GetObjectInfo);
         request.mParameters = new long[]{objectHandle.mValue};
-        PtpOperation.Response response = mSession.executeTransaction(request);
+        PtpOperation.Response response = execute(request);
         response.validate();
         if (!response.isSuccess())
             throw new PtpExceptions.OperationFailed("GetObjectInfo", response.getResponseCode());
         return (PtpDataType.ObjectInfoDataSet) response.getData();
     }
 
+    // decodes fields only on access - much cheaper when scanning many objects for a few fields
+    public PtpDataType.ObjectInfoView getObjectInfoView(PtpDataType.ObjectHandle objectHandle) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_GetObjectInfo);
+        request.mParameters = new long[]{objectHandle.mValue};
+        request.setResponseDataCodec(PtpDataType.CODEC_ObjectInfoView);
+        PtpOperation.Response response = execute(request);
+        response.validate();
+        if (!response.isSuccess())
+            throw new PtpExceptions.OperationFailed("GetObjectInfo", response.getResponseCode());
+        return (PtpDataType.ObjectInfoView) response.getData();
+    }
+
     public byte[] getObject(PtpDataType.ObjectHandle objectHandle) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
-        return getObject(objectHandle, null);
+        return getObject(objectHandle, (DataLoadListener) null);
     }
-    public byte[] getObject(PtpDataType.ObjectHandle objectHandle, final DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+    public byte[] getObject(PtpDataType.ObjectHandle objectHandle, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
         PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_GetObject);
         request.mParameters = new long[]{objectHandle.mValue};
-        PtpOperation.Response response = mSession.executeTransaction(request, listener == null ? null : new PtpTransport.Session.DataLoadListener() {
-            @Override public void onDataLoaded(PtpOperation.Request request, long loaded, long expected) {listener.onDataLoaded(loaded, expected);}
-        });
+        PtpOperation.Response response = execute(request, adapt(listener));
         response.validate();
         if (!response.isSuccess())
             throw new PtpExceptions.OperationFailed("GetObject", response.getResponseCode());
         return ((PtpDataType.Object) response.getData()).mObject;
     }
 
+    public void getObject(PtpDataType.ObjectHandle objectHandle, OutputStream out) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        getObject(objectHandle, out, null);
+    }
+    public void getObject(PtpDataType.ObjectHandle objectHandle, OutputStream out, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        loadObject("GetObject", PtpOperation.OPSCODE_GetObject, new long[]{objectHandle.mValue}, new StreamSink(out), listener);
+    }
+    public void getObject(PtpDataType.ObjectHandle objectHandle, WritableByteChannel channel) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        getObject(objectHandle, channel, null);
+    }
+    public void getObject(PtpDataType.ObjectHandle objectHandle, WritableByteChannel channel, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        loadObject("GetObject", PtpOperation.OPSCODE_GetObject, new long[]{objectHandle.mValue}, new ChannelSink(channel), listener);
+    }
+
+    public void getObject(PtpDataType.ObjectHandle objectHandle, PtpTransport.DataSink sink, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        loadObject("GetObject", PtpOperation.OPSCODE_GetObject, new long[]{objectHandle.mValue}, sink, listener);
+    }
+    public void getObject(PtpDataType.ObjectHandle objectHandle, File file) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed, IOException {
+        getObject(objectHandle, file, null);
+    }
+    public void getObject(PtpDataType.ObjectHandle objectHandle, File file, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed, IOException {
+        // filled straight from the transport where it supports that, and removed again if the download fails
+        PtpFileSink sink = new PtpFileSink(file);
+        try {getObject(objectHandle, sink, listener);}
+        finally {sink.close();}
+    }
+
     // FIXME: need to check for IMAGE, since (Sony) camera might stop otherwise...
     public byte[] getThumb(PtpDataType.ObjectHandle objectHandle) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
-        return getThumb(objectHandle, null);
+        return getThumb(objectHandle, (DataLoadListener) null);
     }
-    public byte[] getThumb(PtpDataType.ObjectHandle objectHandle, final DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+    public byte[] getThumb(PtpDataType.ObjectHandle objectHandle, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
         PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_GetThumb);
         request.mParameters = new long[]{objectHandle.mValue};
-        PtpOperation.Response response = mSession.executeTransaction(request, listener == null ? null : new PtpTransport.Session.DataLoadListener() {
-            @Override public void onDataLoaded(PtpOperation.Request request, long loaded, long expected) {listener.onDataLoaded(loaded, expected);}
-        });
+        PtpOperation.Response response = execute(request, adapt(listener));
         response.validate();
         if (!response.isSuccess())
             throw new PtpExceptions.OperationFailed("GetThumb", response.getResponseCode());
         return ((PtpDataType.Object) response.getData()).mObject;
     }
 
+    public void getThumb(PtpDataType.ObjectHandle objectHandle, OutputStream out) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        getThumb(objectHandle, out, null);
+    }
+    public void getThumb(PtpDataType.ObjectHandle objectHandle, OutputStream out, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        loadObject("GetThumb", PtpOperation.OPSCODE_GetThumb, new long[]{objectHandle.mValue}, new StreamSink(out), listener);
+    }
+    public void getThumb(PtpDataType.ObjectHandle objectHandle, WritableByteChannel channel) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        getThumb(objectHandle, channel, null);
+    }
+    public void getThumb(PtpDataType.ObjectHandle objectHandle, WritableByteChannel channel, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        loadObject("GetThumb", PtpOperation.OPSCODE_GetThumb, new long[]{objectHandle.mValue}, new ChannelSink(channel), listener);
+    }
+
+    public void getThumb(PtpDataType.ObjectHandle objectHandle, PtpTransport.DataSink sink, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        loadObject("GetThumb", PtpOperation.OPSCODE_GetThumb, new long[]{objectHandle.mValue}, sink, listener);
+    }
+
     public void initiateCapture() throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
         initiateCapture(new PtpDataType.StorageID(0), new PtpDataType.ObjectFormatCode(0));
     }
     public void initiateCapture(PtpDataType.StorageID storageID, PtpDataType.ObjectFormatCode objectFormatCode) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
         PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_InitiateCapture);
         request.mParameters = new long[]{ storageID.mValue, objectFormatCode.mValue };
-        PtpOperation.Response response = mSession.executeTransaction(request);
+        PtpOperation.Response response = execute(request);
         response.validate();
         if (!response.isSuccess())
             throw new PtpExceptions.OperationFailed("InitiateCapture", response.getResponseCode());
     }
 
+    // offset and length are 32bit in PTP, so only the first 4GB of an object can be addressed
+    public byte[] getPartialObject(PtpDataType.ObjectHandle objectHandle, long offset, long maxBytes) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_GetPartialObject);
+        request.mParameters = new long[]{objectHandle.mValue, offset, maxBytes};
+        PtpOperation.Response response = execute(request);
+        response.validate();
+        if (!response.isSuccess())
+            throw new PtpExceptions.OperationFailed("GetPartialObject", response.getResponseCode());
+        return ((PtpDataType.Object) response.getData()).mObject;
+    }
+    public long getPartialObject(PtpDataType.ObjectHandle objectHandle, long offset, long maxBytes, PtpTransport.DataSink sink, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        // returns the number of bytes actually sent, which may be less than requested
+        return loadObject("GetPartialObject", PtpOperation.OPSCODE_GetPartialObject, new long[]{objectHandle.mValue, offset, maxBytes}, sink, listener).mParameters[0];
+    }
+
+    public PtpDataType.ObjectHandle sendObjectInfo(PtpDataType.StorageID storageId, PtpDataType.ObjectHandle parentHandle, PtpDataType.ObjectInfoDataSet objectInfo) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_SendObjectInfo);
+        request.mParameters = new long[]{storageId.mValue, parentHandle.mValue};
+        request.mData = objectInfo;
+        PtpOperation.Response response = execute(request);
+        response.validate();
+        if (!response.isSuccess())
+            throw new PtpExceptions.OperationFailed("SendObjectInfo", response.getResponseCode());
+        return new PtpDataType.ObjectHandle(response.mParameters[2]);
+    }
+
+    public void sendObject(byte[] object) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        sendObject(new ArraySource(object), null);
+    }
+    public void sendObject(InputStream in, long length, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        sendObject(new StreamSource(in, length), listener);
+    }
+    public void sendObject(File file) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed, IOException {
+        sendObject(file, null);
+    }
+    public void sendObject(File file, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed, IOException {
+        PtpFileSource source = new PtpFileSource(file);
+        try {sendObject(source, listener);}
+        finally {source.close();}
+    }
+
+    // the object's data is pulled from the source chunk by chunk while it's being sent
+    public void sendObject(PtpTransport.DataSource source, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_SendObject);
+        request.setDataSource(source);
+        PtpOperation.Response response = execute(request, adapt(listener));
+        response.validate();
+        if (!response.isSuccess())
+            throw new PtpExceptions.OperationFailed("SendObject", response.getResponseCode());
+    }
+
+    // streams the object's data into the sink packet by packet instead of collecting it on the heap
+    private PtpOperation.Response loadObject(String operationName, int operationCode, long[] parameters, PtpTransport.DataSink sink, DataLoadListener listener) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation, PtpExceptions.OperationFailed {
+        PtpOperation.Request request = PtpOperation.createRequest(operationCode);
+        request.mParameters = parameters;
+        request.setDataSink(sink);
+        PtpOperation.Response response = execute(request, adapt(listener));
+        response.validate();
+        if (!response.isSuccess())
+            throw new PtpExceptions.OperationFailed(operationName, response.getResponseCode());
+        return response;
+    }
+
+    // -----------------------------------------------------------------------------------------
+    // Data sinks
+
+    private static class StreamSink implements PtpTransport.DataSink {
+        private final OutputStream mOut;
+        private byte[] mCopyBuffer;
+
+        StreamSink(OutputStream out) {mOut = out;}
+
+        @Override public void onDataStart(long dataLength) {}
+        @Override public void write(ByteBuffer data) throws IOException {
+            if (data.hasArray()) {
+                mOut.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+                return;
+            }
+            if (mCopyBuffer == null) mCopyBuffer = new byte[8192];
+            int length = Math.min(data.remaining(), mCopyBuffer.length);
+            data.get(mCopyBuffer, 0, length);
+            mOut.write(mCopyBuffer, 0, length);
+        }
+        @Override public void onDataEnd() throws IOException {mOut.flush();}
+    }
+
+    private static class ChannelSink implements PtpTransport.DataSink {
+        private final WritableByteChannel mChannel;
+
+        ChannelSink(WritableByteChannel channel) {mChannel = channel;}
+
+        @Override public void onDataStart(long dataLength) {}
+        @Override public void write(ByteBuffer data) throws IOException {mChannel.write(data);}
+        @Override public void onDataEnd() {}
+    }
+
+    // -----------------------------------------------------------------------------------------
+    // Data sources
+
+    private static class ArraySource implements PtpTransport.DataSource {
+        private final byte[] mData;
+        private int mPosition = 0;
+
+        ArraySource(byte[] data) {mData = data;}
+
+        @Override public long getDataLength() {return mData.length;}
+        @Override public int read(ByteBuffer data) {
+            if (mPosition == mData.length) return -1;
+            int length = Math.min(data.remaining(), mData.length - mPosition);
+            data.put(mData, mPosition, length);
+            mPosition += length;
+            return length;
+        }
+    }
+
+    private static class StreamSource implements PtpTransport.DataSource {
+        private final ReadableByteChannel mChannel;
+        private final long mLength;
+
+        StreamSource(InputStream in, long length) {
+            mChannel = Channels.newChannel(in);
+            mLength = length;
+        }
+
+        @Override public long getDataLength() {return mLength;}
+        @Override public int read(ByteBuffer data) throws IOException {return mChannel.read(data);}
+    }
+
 /*      public void deleteObject() {}
-    public void sendObjectInfo() {}
-    public void sendObject() {}
     public void initiateCapture() {}
     public void formatStore() {}
     public void resetDevice() {}
@@ -175,6 +412,5 @@ public class PtpSession {
     public void resetDevicePropValue() {}
     public void terminateOpenCapture() {}
     public void moveObject() {}
-    public void copyObject() {}
-    public void getPartialObject() {} */
+    public void copyObject() {} */
 }
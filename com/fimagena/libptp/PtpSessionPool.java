@@ -0,0 +1,298 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+
+public class PtpSessionPool {
+
+    // Keeps warm sessions on one device and hands them out per transaction (or a series of them). The pool
+    // starts with minSessions and grows by one (up to maxSessions) after a sampling interval in which
+    // callers had to wait for a session. If the next interval's throughput (bytes the handed out sessions
+    // moved, counted from their requests' progress) hasn't risen by MIN_GAIN, the extra session is given up
+    // again and the pool stays below that size for a while - every CEILING_RECOVERY the limit goes back up
+    // by one, so a slow spell doesn't pin it for good. Sessions beyond minSessions that sit idle for
+    // IDLE_TIMEOUT are closed by a reaper thread. For PTP/IP each additional session is a connection of its
+    // own, so reusing them saves the TCP and init handshakes.
+
+    public final static long SAMPLE_INTERVAL = 2000;
+    public final static long IDLE_TIMEOUT = 30000;
+    public final static long CEILING_RECOVERY = 60000;
+    private final static double MIN_GAIN = 1.1;
+
+    private final static Logger LOG = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private static class IdleSession {
+        final PtpSession mSession;
+        final long mSince;
+        IdleSession(PtpSession session, long since) {mSession = session; mSince = since;}
+    }
+
+    // a session while it's handed out - counts the bytes moved by the requests run through it
+    private static class Lease implements PtpSession.RequestObserver {
+        final PtpSession mSession;
+        private PtpOperation.Request mLastRequest;
+        private long mBytes = 0;
+        Lease(PtpSession session) {mSession = session;}
+
+        // a request's progress is reset when it's run again --> count it in once the next one goes out
+        @Override public synchronized void onRequest(PtpOperation.Request request) {
+            if (mLastRequest != null) mBytes += mLastRequest.getProgress().getTransferred();
+            mLastRequest = request;
+        }
+        synchronized long finish() {onRequest(null); return mBytes;}
+    }
+
+    private final PtpConnection mConnection;
+    private final int mMinSessions;
+    private final int mMaxSessions;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mSessionReturned = mLock.newCondition();
+    private final Condition mPoolClosed = mLock.newCondition();
+    private final ArrayDeque<IdleSession> mIdleSessions = new ArrayDeque<>(); // most recently returned first
+    private final IdentityHashMap<PtpSession, Lease> mLeases = new IdentityHashMap<>(); // by handed out view
+    private int mOpenSessions = 0;                                      // idle, in use or being opened
+    private int mTargetSessions;
+    private int mCeiling;
+    private long mCeilingLoweredAt;
+    private boolean mIsClosed = false;
+
+    private long mSampleStart = System.currentTimeMillis();
+    private long mSampleBytes = 0;
+    private boolean mSampleContended = false;
+    private double mThroughputBeforeGrowth = -1;                        // >= 0 while a growth step is on trial
+
+    public PtpSessionPool(PtpConnection connection, int minSessions, int maxSessions) throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation {
+        mConnection = connection;
+        mMinSessions = Math.max(1, minSessions);
+        mMaxSessions = Math.max(mMinSessions, maxSessions);
+        mTargetSessions = mMinSessions;
+        mCeiling = mMaxSessions;
+
+        try {
+            for (int i = 0; i < mMinSessions; i++) {
+                mIdleSessions.add(new IdleSession(mConnection.openSession(), System.currentTimeMillis()));
+                mOpenSessions++;
+            }
+        }
+        catch (PtpTransport.TransportError | PtpExceptions.PtpProtocolViolation e) {close(); throw e;}
+
+        if (mMaxSessions > mMinSessions) connection.getThreadFactory().newThread(new IdleReaper()).start();
+    }
+
+    private class IdleReaper implements Runnable {
+        public void run() {
+            List<PtpSession> expired = new ArrayList<>();
+            while (true) {
+                mLock.lock();
+                try {
+                    if (mIsClosed) return;
+                    long now = System.currentTimeMillis();
+                    collectExpired(now, expired);
+                    IdleSession oldest = mIdleSessions.peekLast();
+                    long wait = (oldest == null) ? IDLE_TIMEOUT : Math.max(1, oldest.mSince + IDLE_TIMEOUT - now);
+                    if (expired.isEmpty()) mPoolClosed.awaitNanos(TimeUnit.MILLISECONDS.toNanos(wait));
+                }
+                catch (InterruptedException e) {return;}
+                finally {mLock.unlock();}
+                closeSessions(expired);
+                expired.clear();
+            }
+        }
+    }
+
+    public int getOpenSessions() {mLock.lock(); try {return mOpenSessions;} finally {mLock.unlock();}}
+    public int getTargetSessions() {mLock.lock(); try {return mTargetSessions;} finally {mLock.unlock();}}
+
+    // blocks until a session is free, opening another one if the pool is allowed to grow
+    public PtpSession acquire() throws PtpTransport.TransportError, PtpExceptions.PtpProtocolViolation {
+        List<PtpSession> expired = new ArrayList<>();
+        mLock.lock();
+        try {
+            while (true) {
+                if (mIsClosed) throw new IllegalStateException("Session pool is closed!");
+                long now = System.currentTimeMillis();
+                updateTarget(now);
+                IdleSession idle = mIdleSessions.pollFirst();
+                if (idle != null) {
+                    collectExpired(now, expired);
+                    return lease(idle.mSession);
+                }
+                if (mOpenSessions < mTargetSessions) {mOpenSessions++; break;}
+                mSampleContended = true;
+                mSessionReturned.awaitUninterruptibly();
+            }
+        }
+        finally {
+            mLock.unlock();
+            closeSessions(expired);
+        }
+
+        // open outside the lock - for PTP/IP it's a complete connection handshake
+        PtpSession session;
+        try {session = mConnection.openSession();}
+        catch (PtpTransport.TransportError | PtpExceptions.PtpProtocolViolation e) {
+            mLock.lock();
+            try {
+                mOpenSessions--;
+                if (mOpenSessions == 0) throw e;
+                // responder won't give us more --> don't try again and make do with the ones we have
+                LOG.warning("PTP: Session pool limited to " + mOpenSessions + " sessions: " + e.getMessage());
+                mTargetSessions = mOpenSessions;
+                lowerCeiling(mOpenSessions, System.currentTimeMillis());
+                mThroughputBeforeGrowth = -1;
+            }
+            finally {mLock.unlock();}
+            return acquire();
+        }
+        mLock.lock();
+        try {return lease(session);}
+        finally {mLock.unlock();}
+    }
+
+    // the session handed out is a view that reports its requests, so the pool can tell what it moved
+    private PtpSession lease(PtpSession session) {
+        Lease lease = new Lease(session);
+        PtpSession view = session.observedBy(lease);
+        mLeases.put(view, lease);
+        return view;
+    }
+    private Lease endLease(PtpSession view) {
+        Lease lease = mLeases.remove(view);
+        if (lease == null) throw new IllegalArgumentException("Session wasn't handed out by this pool!");
+        return lease;
+    }
+
+    public void release(PtpSession view) {
+        List<PtpSession> toClose = new ArrayList<>();
+        mLock.lock();
+        try {
+            Lease lease = endLease(view);
+            PtpSession session = lease.mSession;
+            long now = System.currentTimeMillis();
+            mSampleBytes += lease.finish();
+            updateTarget(now);
+            if (mIsClosed || (mOpenSessions > mTargetSessions)) {
+                mOpenSessions--;
+                toClose.add(session);
+            }
+            else mIdleSessions.addFirst(new IdleSession(session, now));
+            collectExpired(now, toClose);
+            mSessionReturned.signal();
+        }
+        finally {mLock.unlock();}
+        closeSessions(toClose);
+    }
+
+    // for sessions that failed - they're closed rather than handed out again
+    public void discard(PtpSession view) {
+        PtpSession session;
+        mLock.lock();
+        try {
+            session = endLease(view).mSession;
+            mOpenSessions--;
+            mSessionReturned.signal();
+        }
+        finally {mLock.unlock();}
+        List<PtpSession> toClose = new ArrayList<>();
+        toClose.add(session);
+        closeSessions(toClose);
+    }
+
+    // idle sessions are closed right away, the ones in use when they're released
+    public void close() {
+        List<PtpSession> toClose = new ArrayList<>();
+        mLock.lock();
+        try {
+            mIsClosed = true;
+            for (IdleSession idle : mIdleSessions) toClose.add(idle.mSession);
+            mOpenSessions -= mIdleSessions.size();
+            mIdleSessions.clear();
+            mSessionReturned.signalAll();
+            mPoolClosed.signalAll();
+        }
+        finally {mLock.unlock();}
+        closeSessions(toClose);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Sizing (lock held)
+
+    private void updateTarget(long now) {
+        if (now - mSampleStart < SAMPLE_INTERVAL) return;
+        double throughput = mSampleBytes * 1000.0 / (now - mSampleStart);
+
+        // give sizes that didn't pay off (or couldn't be opened) another chance, one step at a time
+        if ((mCeiling < mMaxSessions) && (now - mCeilingLoweredAt >= CEILING_RECOVERY)) {
+            mCeiling++;
+            mCeilingLoweredAt = now;
+        }
+
+        if (mThroughputBeforeGrowth >= 0) {
+            // last growth step on trial --> keep it only if it paid off
+            if (throughput < mThroughputBeforeGrowth * MIN_GAIN) {
+                mTargetSessions--;
+                lowerCeiling(mTargetSessions, now);
+            }
+            mThroughputBeforeGrowth = -1;
+        }
+        else if (mSampleContended && (mTargetSessions < mCeiling)) {
+            mThroughputBeforeGrowth = throughput;
+            mTargetSessions++;
+        }
+
+        mSampleStart = now;
+        mSampleBytes = 0;
+        mSampleContended = false;
+    }
+
+    private void lowerCeiling(int ceiling, long now) {
+        mCeiling = ceiling;
+        mCeilingLoweredAt = now;
+    }
+
+    private void collectExpired(long now, List<PtpSession> expired) {
+        Iterator<IdleSession> oldestFirst = mIdleSessions.descendingIterator();
+        while (oldestFirst.hasNext() && (mOpenSessions > mMinSessions)) {
+            IdleSession idle = oldestFirst.next();
+            if (now - idle.mSince < IDLE_TIMEOUT) break;
+            oldestFirst.remove();
+            mOpenSessions--;
+            expired.add(idle.mSession);
+        }
+    }
+
+    private static void closeSessions(List<PtpSession> sessions) {
+        for (PtpSession session : sessions) {
+            try {session.close();}
+            catch (Exception e) {LOG.warning("PTP: Could not close pooled session: " + e.getMessage());}
+        }
+    }
+}
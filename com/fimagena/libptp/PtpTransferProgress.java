@@ -0,0 +1,99 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.fimagena.libptp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class PtpTransferProgress {
+
+    // Progress of one transaction's data phase. The transport only bumps the byte counter as data goes
+    // over the wire - whoever publishes the progress samples it at its own pace and derives throughput
+    // and ETA from the samples, so fast transfers don't produce a flood of progress notifications.
+
+    public final static long DEFAULT_SAMPLE_INTERVAL = 250;            // ms
+    private final static double SMOOTHING = 0.3;                        // weight of the latest sample in the throughput
+
+    private final AtomicLong mTransferred = new AtomicLong();
+    private volatile long mExpected = -1;
+
+    // sampling state - only touched by the publishing thread, but readable from anywhere
+    private long mSampleTime;
+    private long mSampleBytes;
+    private boolean mIsCompletionSampled;
+    private volatile double mThroughput = -1;
+
+    // -----------------------------------------------------------------------------------------
+    // Transport side
+
+    public void reset() {
+        mTransferred.set(0);
+        mExpected = -1;
+        mSampleTime = System.nanoTime();
+        mSampleBytes = 0;
+        mIsCompletionSampled = false;
+        mThroughput = -1;
+    }
+    public void setExpected(long expected) {mExpected = expected;}
+    public void add(long bytes) {mTransferred.addAndGet(bytes);}
+
+    // -----------------------------------------------------------------------------------------
+    // Publisher side
+
+    // true --> a new sample was taken and is worth publishing: the interval has passed since the last one,
+    // or the transfer has just completed
+    public boolean sample(long intervalMillis) {
+        long now = System.nanoTime();
+        long transferred = mTransferred.get();
+        boolean isComplete = (transferred == mExpected);
+        if (isComplete ? mIsCompletionSampled : (now - mSampleTime < intervalMillis * 1000000)) return false;
+
+        if (now > mSampleTime) {
+            double throughput = (transferred - mSampleBytes) * 1e9 / (now - mSampleTime);
+            mThroughput = mThroughput < 0 ? throughput : SMOOTHING * throughput + (1 - SMOOTHING) * mThroughput;
+        }
+        mSampleTime = now;
+        mSampleBytes = transferred;
+        mIsCompletionSampled = isComplete;
+        return true;
+    }
+
+    // -----------------------------------------------------------------------------------------
+    // Progress
+
+    public long getTransferred() {return mTransferred.get();}
+    public long getExpected() {return mExpected;}                        // -1 --> not known (yet)
+
+    // bytes/s as of the last sample, -1 before the first
+    public double getThroughput() {return mThroughput;}
+
+    // ms, -1 if unknown
+    public long getRemainingTime() {
+        double throughput = mThroughput;
+        long expected = mExpected;
+        if ((expected < 0) || (throughput <= 0)) return -1;
+        return (long) ((expected - mTransferred.get()) * 1000 / throughput);
+    }
+
+    @Override public String toString() {
+        return getTransferred() + "/" + mExpected + " bytes, " + (long) mThroughput + " bytes/s, " + getRemainingTime() + " ms remaining";
+    }
+}
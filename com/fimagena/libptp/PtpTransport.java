@@ -19,7 +19,12 @@
 
 package com.fimagena.libptp;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 
 public abstract class PtpTransport {
@@ -51,24 +56,70 @@ public abstract class PtpTransport {
 
         PtpOperation.Response executeTransaction(PtpOperation.Request request) throws TransportDataError, TransportIOError, TransportOperationFailed;
         PtpOperation.Response executeTransaction(PtpOperation.Request request, DataLoadListener listener) throws TransportDataError, TransportIOError, TransportOperationFailed;
+        // from any thread; the transaction then completes early, typically with RSPCODE_TransactionCancelled
+        void cancelTransaction(PtpOperation.Request request) throws TransportIOError;
         void close() throws TransportDataError, TransportIOError, TransportOperationFailed, PtpExceptions.PtpProtocolViolation;
     }
 
 
-    public interface PayloadBuffer {
+    public interface ReadablePayloadBuffer {
+        short  readUInt8 () throws TransportDataError;
+        int    readUInt16() throws TransportDataError;
+        long   readUInt32() throws TransportDataError;
+        long   readUInt64() throws TransportDataError;
+        byte[] readObject();
+
+        // bulk little-endian reads of length values into the array, kept as raw (signed) Java primitives
+        void readUInt16Array(short[] values, int offset, int length) throws TransportDataError;
+        void readUInt32Array(int[]   values, int offset, int length) throws TransportDataError;
+        void readUtf16      (char[]  chars , int offset, int length) throws TransportDataError; // UTF-16LE code units
+
+        void release(); // buffer (and any pooled memory behind it) is no longer used
+    }
+
+    public interface PayloadBuffer extends ReadablePayloadBuffer {
         PayloadBuffer writeUInt8 (short  value);
         PayloadBuffer writeUInt16(int    value);
         PayloadBuffer writeUInt32(long   value);
         PayloadBuffer writeUInt64(long   value);
         PayloadBuffer writeObject(byte[] object);
+    }
 
-        short  readUInt8 () throws TransportDataError;
-        int    readUInt16() throws TransportDataError;
-        long   readUInt32() throws TransportDataError;
-        long   readUInt64() throws TransportDataError;
-        byte[] readObject();
+
+    public interface DataSink {
+        void onDataStart(long dataLength) throws IOException;
+        void write(ByteBuffer data) throws IOException;             // may consume only part of data
+        void onDataEnd() throws IOException;
+    }
+
+    public interface DirectDataSink extends DataSink {
+        // transports that can, hand over their channel so the data skips the heap; may transfer less than count
+        long transferFrom(ReadableByteChannel channel, long count) throws IOException;
+    }
+
+
+    public interface DataSource {
+        long getDataLength();
+        int read(ByteBuffer data) throws IOException;               // -1 if exhausted
     }
 
+    public interface DirectDataSource extends DataSource {
+        // transports that can, hand over their channel so the data skips the heap; may transfer less than count
+        long transferTo(WritableByteChannel channel, long count) throws IOException;
+    }
+
+
+    // threads for the listener loops of transport and connection - e.g. Thread.ofVirtual().factory() to run
+    // many devices without an OS thread per listener; must be set before connecting
+    public final static ThreadFactory DEFAULT_THREAD_FACTORY = new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {return new Thread(runnable);}
+    };
+
+    protected ThreadFactory mThreadFactory = DEFAULT_THREAD_FACTORY;
+
+    public void setThreadFactory(ThreadFactory threadFactory) {mThreadFactory = threadFactory;}
+    public ThreadFactory getThreadFactory() {return mThreadFactory;}
+
 
     public abstract BlockingQueue<PtpEvent> getEventQueue();
 
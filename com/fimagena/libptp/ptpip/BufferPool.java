@@ -0,0 +1,86 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp.ptpip;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class BufferPool {
+    public final static int DEFAULT_MAX_POOLED_SIZE = 4 * 1024 * 1024;
+    public final static int DEFAULT_MAX_BUFFERS_PER_CLASS = 4;
+    public final static long DEFAULT_MAX_TOTAL_SIZE = 8 * 1024 * 1024;  // all free buffers together
+
+    private final static int MIN_SIZE_CLASS = 6; // smallest pooled buffer is 64 bytes
+
+    // one stack of free buffers per power-of-two size class; ArrayDeque so that steady-state
+    // acquire/release doesn't allocate (unlike the node-based concurrent queues)
+    private final List<ArrayDeque<DataBuffer>> mFreeBuffers;       // indexed by size class
+    private final int mMaxSizeClass;
+    private final int mMaxBuffersPerClass;
+    private final long mMaxTotalSize;
+    private final AtomicLong mTotalSize = new AtomicLong();              // of the free buffers
+
+    public BufferPool() {this(DEFAULT_MAX_POOLED_SIZE, DEFAULT_MAX_BUFFERS_PER_CLASS);}
+    public BufferPool(int maxPooledSize, int maxBuffersPerClass) {this(maxPooledSize, maxBuffersPerClass, DEFAULT_MAX_TOTAL_SIZE);}
+    public BufferPool(int maxPooledSize, int maxBuffersPerClass, long maxTotalSize) {
+        mMaxSizeClass = Math.max(sizeClass(maxPooledSize), MIN_SIZE_CLASS);
+        mMaxBuffersPerClass = maxBuffersPerClass;
+        mMaxTotalSize = maxTotalSize;
+        mFreeBuffers = new ArrayList<>(mMaxSizeClass + 1);
+        for (int i = 0; i <= mMaxSizeClass; i++) mFreeBuffers.add((i < MIN_SIZE_CLASS) ? null : new ArrayDeque<DataBuffer>(maxBuffersPerClass));
+    }
+
+    // smallest class that can hold size bytes
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_SIZE_CLASS)) return MIN_SIZE_CLASS;
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    public DataBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass > mMaxSizeClass) return new DataBuffer(size); // too big to keep around - not pooled
+
+        ArrayDeque<DataBuffer> freeBuffers = mFreeBuffers.get(sizeClass);
+        DataBuffer buffer;
+        synchronized (freeBuffers) {buffer = freeBuffers.pollFirst();}
+        if (buffer == null) buffer = new DataBuffer(this, 1 << sizeClass);
+        else mTotalSize.addAndGet(-buffer.capacity());
+        buffer.setPooled(false);
+        return buffer;
+    }
+
+    protected void recycle(DataBuffer buffer) {
+        // buffers may have grown while in use - file them under the largest class they can serve
+        int sizeClass = 31 - Integer.numberOfLeadingZeros(buffer.capacity());
+        if ((sizeClass < MIN_SIZE_CLASS) || (sizeClass > mMaxSizeClass)) return;
+
+        buffer.clear();
+        ArrayDeque<DataBuffer> freeBuffers = mFreeBuffers.get(sizeClass);
+        synchronized (freeBuffers) {
+            if (freeBuffers.size() >= mMaxBuffersPerClass) return; // pool is full, leave it to the GC
+            if (mTotalSize.addAndGet(buffer.capacity()) > mMaxTotalSize) {mTotalSize.addAndGet(-buffer.capacity()); return;}
+            buffer.setPooled(true);
+            freeBuffers.offerFirst(buffer);
+        }
+    }
+}
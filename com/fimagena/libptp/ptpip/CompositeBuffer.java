@@ -0,0 +1,154 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp.ptpip;
+
+import com.fimagena.libptp.PtpTransport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+
+public class CompositeBuffer implements PtpTransport.ReadablePayloadBuffer {
+
+    // read-only, little-endian view chaining the payloads of a data phase without concatenating them;
+    // the component buffers are owned by the CompositeBuffer and released with it
+    private final ArrayList<DataBuffer> mComponents = new ArrayList<>();
+    private int mCurrentComponent = 0;
+    private long mSize = 0;
+
+    public CompositeBuffer addComponent(DataBuffer buffer) {
+        mComponents.add(buffer);
+        mSize += buffer.available();
+        return this;
+    }
+
+    public long size() {return mSize;}
+
+    public long available() {
+        long available = 0;
+        for (int i = mCurrentComponent; i < mComponents.size(); i++) available += mComponents.get(i).available();
+        return available;
+    }
+
+    public ByteBuffer[] asByteBuffers() {
+        ByteBuffer[] buffers = new ByteBuffer[mComponents.size() - mCurrentComponent];
+        for (int i = 0; i < buffers.length; i++) buffers[i] = mComponents.get(mCurrentComponent + i).asByteBuffer();
+        return buffers;
+    }
+
+    @Override public void release() {
+        for (DataBuffer buffer : mComponents) buffer.release();
+        mComponents.clear();
+        mCurrentComponent = 0;
+        mSize = 0;
+    }
+
+    private DataBuffer currentComponent() {
+        while ((mCurrentComponent < mComponents.size()) && (mComponents.get(mCurrentComponent).available() == 0)) mCurrentComponent++;
+        return mCurrentComponent < mComponents.size() ? mComponents.get(mCurrentComponent) : null;
+    }
+
+    // value straddles a component boundary - assemble it byte by byte
+    private long readSplit(int length) throws PtpIpExceptions.MalformedPacket {
+        if (available() < length) throw new PtpIpExceptions.MalformedPacket("Insufficient data in buffer (expected " + length + " bytes)!");
+        long value = 0;
+        for (int i = 0; i < length; i++) value |= ((long) currentComponent().readUInt8()) << (8 * i);
+        return value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Reads
+
+    @Override public short readUInt8() throws PtpIpExceptions.MalformedPacket {
+        DataBuffer component = currentComponent();
+        if (component == null) throw new PtpIpExceptions.MalformedPacket("Insufficient data in buffer (expected 1 bytes)!");
+        return component.readUInt8();
+    }
+
+    @Override public int readUInt16() throws PtpIpExceptions.MalformedPacket {
+        DataBuffer component = currentComponent();
+        if ((component != null) && (component.available() >= 2)) return component.readUInt16();
+        return (int) readSplit(2);
+    }
+
+    @Override public long readUInt32() throws PtpIpExceptions.MalformedPacket {
+        DataBuffer component = currentComponent();
+        if ((component != null) && (component.available() >= 4)) return component.readUInt32();
+        return readSplit(4);
+    }
+
+    @Override public long readUInt64() throws PtpIpExceptions.MalformedPacket {
+        DataBuffer component = currentComponent();
+        if ((component != null) && (component.available() >= 8)) return component.readUInt64();
+        return readSplit(8);
+    }
+
+    @Override public void readUInt16Array(short[] values, int offset, int length) throws PtpIpExceptions.MalformedPacket {
+        while (length > 0) {
+            DataBuffer component = currentComponent();
+            int chunk = component == null ? 0 : Math.min(length, component.available() / 2);
+            if (chunk == 0) {values[offset++] = (short) readSplit(2); length--; continue;}
+            component.readUInt16Array(values, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override public void readUInt32Array(int[] values, int offset, int length) throws PtpIpExceptions.MalformedPacket {
+        while (length > 0) {
+            DataBuffer component = currentComponent();
+            int chunk = component == null ? 0 : Math.min(length, component.available() / 4);
+            if (chunk == 0) {values[offset++] = (int) readSplit(4); length--; continue;}
+            component.readUInt32Array(values, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override public void readUtf16(char[] chars, int offset, int length) throws PtpIpExceptions.MalformedPacket {
+        while (length > 0) {
+            DataBuffer component = currentComponent();
+            int chunk = component == null ? 0 : Math.min(length, component.available() / 2);
+            if (chunk == 0) {chars[offset++] = (char) readSplit(2); length--; continue;}
+            component.readUtf16(chars, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    public CompositeBuffer readObject(byte[] byteArray, int offset, int length) throws PtpIpExceptions.MalformedPacket {
+        if (available() < length) throw new PtpIpExceptions.MalformedPacket("Insufficient data in buffer (expected " + length + " bytes)!");
+        while (length > 0) {
+            DataBuffer component = currentComponent();
+            int chunk = Math.min(length, component.available());
+            component.readObject(byteArray, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+        return this;
+    }
+
+    @Override public byte[] readObject() {
+        // the only copy on the receive path - and only when the caller wants the data as one array
+        byte[] byteArray = new byte[(int) available()];
+        try {readObject(byteArray, 0, byteArray.length);} catch (PtpIpExceptions.MalformedPacket e) {} //can't happen
+        return byteArray;
+    }
+}
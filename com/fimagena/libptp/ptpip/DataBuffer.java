@@ -21,179 +21,289 @@ package com.fimagena.libptp.ptpip;
 
 import com.fimagena.libptp.PtpTransport;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 
 public class DataBuffer implements PtpTransport.PayloadBuffer {
 
-    private ByteArrayOutputStream mOut;
-    private ByteArrayInputStream mIn;
-    private byte[] mInData;
+    private final static int DEFAULT_CAPACITY = 64;
 
-    private enum Status {READ, WRITE};
-    private Status mStatus;
+    // single backing array with separate read and write index: [0, mReadIndex) has been consumed,
+    // [mReadIndex, mWriteIndex) is readable, [mWriteIndex, capacity) is free for writing
+    private byte[] mData;
+    private ByteBuffer mBuffer;
+    private int mReadIndex;
+    private int mWriteIndex;
 
-    private boolean mIsLE = true;
+    private final ByteOrder mByteOrder;
 
-    public DataBuffer()                                          {this(null, 0, true);}
-    public DataBuffer(boolean isLittleEndian)                    {this(null, 0, isLittleEndian);}
+    // pooled buffers are handed back to their pool on release()
+    private final BufferPool mPool;
+    private boolean mIsPooled = false;
+
+    public DataBuffer()                                          {this(null, DEFAULT_CAPACITY, true);}
+    public DataBuffer(boolean isLittleEndian)                    {this(null, DEFAULT_CAPACITY, isLittleEndian);}
     public DataBuffer(int size)                                  {this(null, size, true);}
     public DataBuffer(int size, boolean isLittleEndian)          {this(null, size, isLittleEndian);}
     public DataBuffer(byte[] packetData)                         {this(packetData, 0, true);}
     public DataBuffer(byte[] packetData, boolean isLittleEndian) {this(packetData, 0, isLittleEndian);}
 
+    protected DataBuffer(BufferPool pool, int size) {
+        mByteOrder = ByteOrder.LITTLE_ENDIAN;
+        mPool = pool;
+        setBackingArray(new byte[size], 0);
+    }
+
     private DataBuffer(byte[] packetData, int size, boolean isLittleEndian) {
-        if (packetData == null) {
-            mOut = size > 0 ? new ByteArrayOutputStream(size) : new ByteArrayOutputStream();
-            mStatus = Status.WRITE;
-        }
-        else {
-            mIn = new ByteArrayInputStream(packetData);
-            mInData = packetData;
-            mStatus = Status.READ;
-        }
-        mIsLE = isLittleEndian;
+        mByteOrder = isLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        mPool = null;
+        if (packetData == null) setBackingArray(new byte[Math.max(size, 0)], 0);
+        else                    setBackingArray(packetData, packetData.length);
     }
 
-    private void startWrite() {
-        if (mStatus != Status.WRITE) {
-            mOut = new ByteArrayOutputStream();
-            mIn = null; mInData = null;
-            mStatus = Status.WRITE;
-        }
+    private void setBackingArray(byte[] data, int writeIndex) {
+        mData = data;
+        mBuffer = ByteBuffer.wrap(mData).order(mByteOrder);
+        mWriteIndex = writeIndex;
     }
 
-    private void startRead(int length) throws PtpIpExceptions.MalformedPacket {
-        if (mStatus != Status.READ) {
-            mInData = mOut.toByteArray(); mIn = new ByteArrayInputStream(mInData);
-            mOut = null;
-            mStatus = Status.READ;
-        }
-        if (mIn.available() < length) throw new PtpIpExceptions.MalformedPacket("Insufficient data in buffer (expected " + length + " bytes)!");
+    private void ensureWritable(int length) {
+        if (mData.length - mWriteIndex >= length) return;
+        int newCapacity = Math.max(mData.length, DEFAULT_CAPACITY);
+        while (newCapacity - mWriteIndex < length) newCapacity <<= 1;
+        setBackingArray(Arrays.copyOf(mData, newCapacity), mWriteIndex);
     }
 
-    interface LoadingListener {void onLoaded(int loadedBytes);}
+    private void ensureReadable(int index, int length) throws PtpIpExceptions.MalformedPacket {
+        if ((index < 0) || (mWriteIndex - index < length)) throw new PtpIpExceptions.MalformedPacket("Insufficient data in buffer (expected " + length + " bytes)!");
+    }
+
+    interface LoadingListener {void onLoaded(int loadedBytes);}         // bytes of each read, as it happens
     public void fill(InputStream inputStream, int length) throws IOException {fill(inputStream, length, null);}
     public void fill(InputStream inputStream, int length, LoadingListener listener) throws IOException {
-        byte[] buffer = new byte[length];
+        // reads straight into the backing array, appending to whatever is already in the buffer
+        ensureWritable(length);
         int pos = 0;
         while (pos < length) {
-            int read = inputStream.read(buffer, pos, length - pos);
+            int read = inputStream.read(mData, mWriteIndex + pos, length - pos);
             if (read == -1) throw new IOException("InputStream closed unexpectedly!");
             pos += read;
-            if ((pos < length) && (listener != null)) listener.onLoaded(pos);
+            if (listener != null) listener.onLoaded(read);
         }
-        mIn = new ByteArrayInputStream(buffer);
-        mInData = buffer;
-        mStatus = Status.READ;
+        mWriteIndex += length;
     }
 
-    public byte[] getData() {return mStatus == Status.READ ? mInData : mOut.toByteArray();}
+    // ---------------------------------------------------------------------------------------------
+    // Buffer state
 
-    public int available() {
-        if (mStatus == Status.WRITE) return 0;
-        return mIn.available();
+    public byte[] getData() {
+        // only copy if the backing array isn't exactly the buffer's content
+        if (mWriteIndex == mData.length) return mData;
+        return Arrays.copyOf(mData, mWriteIndex);
     }
 
-    public void reset() {
-        if (mStatus == Status.READ) mIn.reset();
-        else mOut.reset();
+    public ByteBuffer asByteBuffer() {
+        // view on the readable content - doesn't copy and doesn't consume (shares the backing array)
+        return ByteBuffer.wrap(mData, mReadIndex, mWriteIndex - mReadIndex).slice().order(mByteOrder);
     }
 
-    public long size() {return mStatus == Status.WRITE ? mOut.size() : mInData.length;}
+    public int available() {return mWriteIndex - mReadIndex;}
+    public int position() {return mReadIndex;}
+    public long size() {return mWriteIndex;}
+    public int capacity() {return mData.length;}
+    public ByteOrder order() {return mByteOrder;}
+
+    public void reset() {mReadIndex = 0;}
+    public void clear() {mReadIndex = 0; mWriteIndex = 0;}
+
+    // hand the buffer back to its pool (no-op for unpooled buffers) - must not be used afterwards
+    public void release() {
+        if ((mPool == null) || mIsPooled) return;
+        mPool.recycle(this);
+    }
+    protected void setPooled(boolean isPooled) {mIsPooled = isPooled;}
+
+    public DataBuffer skip(int length) throws PtpIpExceptions.MalformedPacket {
+        ensureReadable(mReadIndex, length);
+        mReadIndex += length;
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Relative writes
 
     @Override public DataBuffer writeUInt8(short uint8) {
-        startWrite();
-        mOut.write(uint8);
+        ensureWritable(1);
+        mData[mWriteIndex++] = (byte) uint8;
         return this;
     }
 
     @Override public DataBuffer writeUInt16(int uint16) {
-        startWrite();
-        if (mIsLE) {
-            mOut.write(uint16); mOut.write(uint16 >> 8);}
-        else       {
-            mOut.write(uint16 >> 8); mOut.write(uint16);}
+        ensureWritable(2);
+        mBuffer.putShort(mWriteIndex, (short) uint16);
+        mWriteIndex += 2;
         return this;
     }
 
     @Override public DataBuffer writeUInt32(long uint32) {
-        startWrite();
-        if (mIsLE) {writeUInt16((int) (uint32 & 0x0000FFFF)); writeUInt16((int) (uint32 >> 16));}
-        else       {writeUInt16((int) (uint32 >> 16)); writeUInt16((int) (uint32 & 0x0000FFFF));}
+        ensureWritable(4);
+        mBuffer.putInt(mWriteIndex, (int) uint32);
+        mWriteIndex += 4;
         return this;
     }
 
     @Override public DataBuffer writeUInt64(long uint64) {
-        startWrite();
-        if (mIsLE) {writeUInt32(uint64 & 0xFFFFFFFF); writeUInt32(uint64 >> 32);}
-        else       {writeUInt32(uint64 >> 32); writeUInt32(uint64 & 0xFFFFFFFF);}
+        ensureWritable(8);
+        mBuffer.putLong(mWriteIndex, uint64);
+        mWriteIndex += 8;
         return this;
     }
 
     public DataBuffer writeUtf16String(String string) {
-        startWrite();
+        ensureWritable(2 * (string.length() + 1));
         for (int i = 0; i < string.length(); i++) writeUInt16(string.charAt(i));
         writeUInt16(0);
         return this;
     }
 
     @Override public DataBuffer writeObject(byte[] byteArray) {
-        startWrite();
         if (byteArray == null) return this;
-        mOut.write(byteArray, 0, byteArray.length);
+        return writeObject(byteArray, 0, byteArray.length);
+    }
+
+    public DataBuffer writeObject(byte[] byteArray, int offset, int length) {
+        ensureWritable(length);
+        System.arraycopy(byteArray, offset, mData, mWriteIndex, length);
+        mWriteIndex += length;
+        return this;
+    }
+
+    public DataBuffer writeObject(ByteBuffer byteBuffer) {
+        int length = byteBuffer.remaining();
+        ensureWritable(length);
+        byteBuffer.get(mData, mWriteIndex, length);
+        mWriteIndex += length;
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Absolute writes (don't move the write index, can only overwrite existing content)
+
+    public DataBuffer putUInt16(int index, int uint16) {
+        if ((index < 0) || (index + 2 > mWriteIndex)) throw new IndexOutOfBoundsException("Index " + index + " outside of written data!");
+        mBuffer.putShort(index, (short) uint16);
         return this;
     }
 
+    public DataBuffer putUInt32(int index, long uint32) {
+        if ((index < 0) || (index + 4 > mWriteIndex)) throw new IndexOutOfBoundsException("Index " + index + " outside of written data!");
+        mBuffer.putInt(index, (int) uint32);
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Relative reads
+
     @Override public short readUInt8() throws PtpIpExceptions.MalformedPacket {
-        startRead(1);
-        return (short) mIn.read();
+        short value = getUInt8(mReadIndex);
+        mReadIndex += 1;
+        return value;
     }
 
     @Override public int readUInt16() throws PtpIpExceptions.MalformedPacket {
-        startRead(2);
-        int first = mIn.read();
-        int second = mIn.read();
-        if (mIsLE) {return first + (second << 8);}
-        else       {return (first << 8) + second;}
+        int value = getUInt16(mReadIndex);
+        mReadIndex += 2;
+        return value;
     }
 
     @Override public long readUInt32() throws PtpIpExceptions.MalformedPacket {
-        startRead(4);
-        long first = readUInt16();
-        long second = readUInt16();
-        if (mIsLE) {return first + (second << 16);}
-        else       {return (first << 16) + second;}
+        long value = getUInt32(mReadIndex);
+        mReadIndex += 4;
+        return value;
     }
 
     @Override public long readUInt64() throws PtpIpExceptions.MalformedPacket {
-        startRead(4);
-        long first = readUInt32();
-        long second = readUInt32();
-        if (mIsLE) {return first + (second << 32);}
-        else       {return (first << 32) + second;}
+        long value = getUInt64(mReadIndex);
+        mReadIndex += 8;
+        return value;
+    }
+
+    // independent view from the given index on, for the typed bulk reads
+    private ByteBuffer view(int index) {
+        ByteBuffer view = mBuffer.duplicate().order(mByteOrder);
+        view.position(index);
+        return view;
+    }
+
+    @Override public void readUInt16Array(short[] values, int offset, int length) throws PtpIpExceptions.MalformedPacket {
+        ensureReadable(mReadIndex, 2 * length);
+        view(mReadIndex).asShortBuffer().get(values, offset, length);
+        mReadIndex += 2 * length;
+    }
+
+    @Override public void readUInt32Array(int[] values, int offset, int length) throws PtpIpExceptions.MalformedPacket {
+        ensureReadable(mReadIndex, 4 * length);
+        view(mReadIndex).asIntBuffer().get(values, offset, length);
+        mReadIndex += 4 * length;
+    }
+
+    @Override public void readUtf16(char[] chars, int offset, int length) throws PtpIpExceptions.MalformedPacket {
+        ensureReadable(mReadIndex, 2 * length);
+        view(mReadIndex).asCharBuffer().get(chars, offset, length);
+        mReadIndex += 2 * length;
     }
 
     public String readUtf16String() throws PtpIpExceptions.MalformedPacket {
-        startRead(2);
-        char[] buffer = new char[100];
-        int offset = 0;
-        while (offset < buffer.length) {
-            if (mIn.available() < 2) throw new PtpIpExceptions.MalformedPacket("PtpIp-string not null-terminated!");
-            buffer[offset] = (char)readUInt16();
-            if (buffer[offset] == 0) return new String(buffer, 0, offset);
-            offset++;
+        ensureReadable(mReadIndex, 2);
+        for (int length = 0; length < 100; length++) {
+            if (available() < 2 * (length + 1)) throw new PtpIpExceptions.MalformedPacket("PtpIp-string not null-terminated!");
+            if (mBuffer.getChar(mReadIndex + 2 * length) == 0) {
+                char[] chars = new char[length];
+                for (int i = 0; i < length; i++) chars[i] = mBuffer.getChar(mReadIndex + 2 * i);
+                mReadIndex += 2 * (length + 1);
+                return new String(chars);
+            }
         }
         throw new PtpIpExceptions.MalformedPacket("PtpIp-string longer than internal limit of 100 chars!");
     }
 
     @Override public byte[] readObject() {
-        try {startRead(0);} catch (PtpIpExceptions.MalformedPacket e) {} //can't happen
-        byte[] byteArray = new byte[mIn.available()];
-        mIn.read(byteArray, 0, byteArray.length);
+        byte[] byteArray = Arrays.copyOfRange(mData, mReadIndex, mWriteIndex);
+        mReadIndex = mWriteIndex;
         return byteArray;
     }
+
+    public DataBuffer readObject(byte[] byteArray, int offset, int length) throws PtpIpExceptions.MalformedPacket {
+        ensureReadable(mReadIndex, length);
+        System.arraycopy(mData, mReadIndex, byteArray, offset, length);
+        mReadIndex += length;
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Absolute reads (don't move the read index)
+
+    public short getUInt8(int index) throws PtpIpExceptions.MalformedPacket {
+        ensureReadable(index, 1);
+        return (short) (mData[index] & 0xFF);
+    }
+
+    public int getUInt16(int index) throws PtpIpExceptions.MalformedPacket {
+        ensureReadable(index, 2);
+        return mBuffer.getShort(index) & 0xFFFF;
+    }
+
+    public long getUInt32(int index) throws PtpIpExceptions.MalformedPacket {
+        ensureReadable(index, 4);
+        return mBuffer.getInt(index) & 0xFFFFFFFFL;
+    }
+
+    public long getUInt64(int index) throws PtpIpExceptions.MalformedPacket {
+        ensureReadable(index, 8);
+        return mBuffer.getLong(index);
+    }
 }
@@ -0,0 +1,123 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp.ptpip;
+
+import com.fimagena.libptp.PtpTransferProgress;
+import com.fimagena.libptp.PtpTransport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+
+class DirectDataReceiver implements PtpIpPacket.PayloadReceiver {
+
+    // Runs on the TcpConnection's listener thread: moves the payloads of one transaction's data phase
+    // straight from the socket channel into a DirectDataSink. Sink errors are kept for the session (and
+    // the rest of the data skipped) - only errors on the socket itself are passed on to the connection.
+
+    private final ReadableByteChannel mChannel;
+    private final long mTransactionId;
+    private final PtpTransport.DirectDataSink mSink;
+    private final PtpTransferProgress mProgress;
+
+    private boolean mIsStarted = false;
+    private volatile IOException mSinkError;
+    private ByteBuffer mSkipBuffer;
+    private final BoundedChannel mBoundedChannel = new BoundedChannel();
+
+    private class BoundedChannel implements ReadableByteChannel {
+        private long mRemaining;
+        private IOException mChannelError;
+
+        @Override public int read(ByteBuffer dst) throws IOException {
+            if (mRemaining == 0) return -1;
+            int limit = dst.limit();
+            if (dst.remaining() > mRemaining) dst.limit(dst.position() + (int) mRemaining);
+            try {
+                int read = mChannel.read(dst);
+                if (read == -1) throw new EOFException("Channel closed unexpectedly!");
+                mRemaining -= read;
+                mProgress.add(read);
+                return read;
+            }
+            catch (IOException e) {mChannelError = e; throw e;}
+            finally {dst.limit(limit);}
+        }
+        @Override public boolean isOpen() {return mChannel.isOpen();}
+        @Override public void close() {}
+    }
+
+    DirectDataReceiver(ReadableByteChannel channel, long transactionId, PtpTransport.DirectDataSink sink, PtpTransferProgress progress) {
+        mChannel = channel;
+        mTransactionId = transactionId;
+        mSink = sink;
+        mProgress = progress;
+    }
+
+    // skips the payloads of a (cancelled) transaction without buffering them
+    static DirectDataReceiver discarding(ReadableByteChannel channel, long transactionId, PtpTransferProgress progress) {
+        DirectDataReceiver receiver = new DirectDataReceiver(channel, transactionId, null, progress);
+        receiver.mIsStarted = true;
+        return receiver;
+    }
+
+    IOException getSinkError() {return mSinkError;}
+
+    @Override public void onStartData(long transactionId, long dataLength) {
+        if ((transactionId != mTransactionId) || (mSink == null)) return;
+        mIsStarted = true;
+        try {mSink.onDataStart(dataLength);}
+        catch (IOException e) {mSinkError = e;}
+        catch (RuntimeException e) {mSinkError = new IOException(e);}
+    }
+
+    @Override public boolean receivePayload(long transactionId, int length) throws IOException {
+        if ((transactionId != mTransactionId) || !mIsStarted) return false;
+
+        BoundedChannel channel = mBoundedChannel;
+        channel.mRemaining = length;
+        channel.mChannelError = null;
+        if ((mSinkError == null) && (mSink != null)) {
+            try {
+                while (channel.mRemaining > 0)
+                    if (mSink.transferFrom(channel, channel.mRemaining) <= 0 && (channel.mRemaining > 0))
+                        throw new IOException("Sink stopped accepting data!");
+            }
+            catch (IOException e) {
+                if (channel.mChannelError != null) throw channel.mChannelError;
+                mSinkError = e;
+            }
+            catch (RuntimeException e) {mSinkError = new IOException(e);}
+        }
+        skip(channel);
+        return true;
+    }
+
+    private void skip(BoundedChannel channel) throws IOException {
+        if (channel.mRemaining == 0) return;
+        if (mSkipBuffer == null) mSkipBuffer = ByteBuffer.allocateDirect(8192);
+        while (channel.mRemaining > 0) {
+            mSkipBuffer.clear();
+            channel.read(mSkipBuffer);
+        }
+    }
+}
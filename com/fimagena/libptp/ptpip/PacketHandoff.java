@@ -0,0 +1,137 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp.ptpip;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+class PacketHandoff {
+
+    // Bounded ring that hands transaction packets from the socket readers (command channel, plus the odd
+    // cancel event or error from the event channel) to the one thread waiting in a transaction. Producers
+    // claim slots with a CAS, each slot's sequence number tells whether it's filled - so no locks and no
+    // per-packet nodes. The consumer parks while the ring is empty and is unparked by the producer that
+    // fills it; a producer finding the ring full backs off until the consumer catches up (which also
+    // throttles the socket reader, as the bounded queue did before) - or, on a selector loop, which must
+    // not park, offers the packet again later. A connection failure doesn't need a slot: it's handed out
+    // once the packets before it have been taken.
+
+    private final static long FULL_BACKOFF_NANOS = 100 * 1000;
+
+    private final int mMask;
+    private final AtomicReferenceArray<PtpIpPacket> mPackets;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    private long mHead = 0;                                             // consumer only (transactions are serialized per session)
+    private volatile Thread mWaitingConsumer;
+    private final AtomicReference<PtpIpPacket> mFailure = new AtomicReference<>();
+
+    PacketHandoff(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1; // next power of two
+        mMask = size - 1;
+        mPackets = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) mSequences.set(i, i);
+    }
+
+    private boolean tryAdd(PtpIpPacket packet) {
+        long tail = mTail.get();
+        while (true) {
+            int slot = (int) tail & mMask;
+            long difference = mSequences.get(slot) - tail;
+            if (difference == 0) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mPackets.set(slot, packet);
+                    mSequences.set(slot, tail + 1);
+                    return true;
+                }
+                tail = mTail.get();
+            }
+            else if (difference < 0) return false;                     // full
+            else tail = mTail.get();                                    // another producer got the slot
+        }
+    }
+
+    private PtpIpPacket next() {
+        int slot = (int) mHead & mMask;
+        if (mSequences.get(slot) != mHead + 1) return mFailure.getAndSet(null);
+        PtpIpPacket packet = mPackets.get(slot);
+        mPackets.set(slot, null);
+        mSequences.set(slot, mHead + mMask + 1);
+        mHead++;
+        return packet;
+    }
+
+    void put(PtpIpPacket packet) {
+        while (!tryAdd(packet)) LockSupport.parkNanos(FULL_BACKOFF_NANOS);
+        wakeConsumer();
+    }
+
+    // false if the ring is full
+    boolean offer(PtpIpPacket packet) {
+        if (!tryAdd(packet)) return false;
+        wakeConsumer();
+        return true;
+    }
+
+    // only the first failure is kept
+    void fail(PtpIpPacket error) {
+        mFailure.compareAndSet(null, error);
+        wakeConsumer();
+    }
+
+    private void wakeConsumer() {
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+    }
+
+    // interrupts don't end the wait, but the interrupt status is kept for the caller
+    PtpIpPacket take() {
+        PtpIpPacket packet;
+        do packet = poll(Long.MAX_VALUE); while (packet == null);
+        return packet;
+    }
+
+    // ... or null if nothing arrived within the timeout
+    PtpIpPacket poll(long timeoutNanos) {
+        PtpIpPacket packet = next();
+        if (packet != null) return packet;
+
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + timeoutNanos;             // differences stay right even if this overflows
+        mWaitingConsumer = Thread.currentThread();
+        try {
+            // registered first, then checked again - a producer either sees us waiting or we see its packet
+            while ((packet = next()) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) break;
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) interrupted = true;
+            }
+        }
+        finally {mWaitingConsumer = null;}
+        if (interrupted) Thread.currentThread().interrupt();
+        return packet;
+    }
+}
@@ -0,0 +1,92 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp.ptpip;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+public class PacketTrace {
+
+    // Lock-free ring buffer of fixed-size binary packet records - recording allocates nothing. A
+    // writer claims a slot with a single atomic increment and writes the record's sequence number
+    // last, so dump() can tell complete records from ones being overwritten while it reads.
+
+    public final static int DIRECTION_IN  = 0;
+    public final static int DIRECTION_OUT = 1;
+
+    private final static int RECORD_SIZE = 4; // sequence, timestamp, type|length, direction|code|transactionId
+    private final static String[] PACKET_NAMES = {"Invalid", "InitCommandRequest", "InitCommandAck", "InitEventRequest", "InitEventAck",
+            "InitFail", "OperationRequest", "OperationResponse", "Event", "StartData", "Data", "Cancel", "EndData", "ProbeRequest", "ProbeResponse"};
+
+    private final AtomicLongArray mRecords;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final int mCapacity;
+
+    public PacketTrace(int capacity) {
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mCapacity = size;
+        mRecords = new AtomicLongArray(size * RECORD_SIZE);
+        for (int i = 0; i < size; i++) mRecords.set(i * RECORD_SIZE, -1);
+    }
+
+    protected void record(int direction, PtpIpPacket packet, long length) {
+        int code = 0;
+        long transactionId = 0;
+        if (packet instanceof PtpIpPacket.TransactionPacket) transactionId = ((PtpIpPacket.TransactionPacket) packet).mTransactionId;
+        if (packet instanceof PtpIpPacket.OperationRequest) code = ((PtpIpPacket.OperationRequest) packet).mOperationCode;
+        else if (packet instanceof PtpIpPacket.OperationResponse) code = ((PtpIpPacket.OperationResponse) packet).mResponseCode;
+        else if (packet instanceof PtpIpPacket.Event) code = ((PtpIpPacket.Event) packet).mEventCode;
+        record(direction, (int) packet.mPacketType, length, code, transactionId);
+    }
+
+    protected void record(int direction, int packetType, long length, int code, long transactionId) {
+        long sequence = mSequence.getAndIncrement();
+        int base = (int) (sequence & (mCapacity - 1)) * RECORD_SIZE;
+        mRecords.set(base, -1);
+        mRecords.set(base + 1, System.nanoTime());
+        mRecords.set(base + 2, ((long) packetType << 32) | (length & 0xFFFFFFFFL));
+        mRecords.set(base + 3, ((long) direction << 48) | ((long) (code & 0xFFFF) << 32) | (transactionId & 0xFFFFFFFFL));
+        mRecords.set(base, sequence);
+    }
+
+    public String dump() {
+        StringBuilder output = new StringBuilder();
+        long end = mSequence.get();
+        long firstTimestamp = 0;
+        for (long sequence = Math.max(0, end - mCapacity); sequence < end; sequence++) {
+            int base = (int) (sequence & (mCapacity - 1)) * RECORD_SIZE;
+            if (mRecords.get(base) != sequence) continue;
+            long timestamp = mRecords.get(base + 1);
+            long typeAndLength = mRecords.get(base + 2);
+            long info = mRecords.get(base + 3);
+            if (mRecords.get(base) != sequence) continue; // overwritten while reading
+
+            if (firstTimestamp == 0) firstTimestamp = timestamp;
+            int packetType = (int) (typeAndLength >>> 32);
+            output.append(String.format("#%d +%dus %s %s [Length: %d, TransactionId: %d, Code: 0x%04x]\n",
+                    sequence, (timestamp - firstTimestamp) / 1000, (info >>> 48) == DIRECTION_IN ? "<==" : "==>",
+                    packetType < PACKET_NAMES.length ? PACKET_NAMES[packetType] : String.format("0x%08x", packetType),
+                    typeAndLength & 0xFFFFFFFFL, info & 0xFFFFFFFFL, (info >>> 32) & 0xFFFF));
+        }
+        return output.toString();
+    }
+}
@@ -23,17 +23,19 @@ import com.fimagena.libptp.PtpDataType;
 import com.fimagena.libptp.PtpExceptions;
 import com.fimagena.libptp.PtpOperation;
 import com.fimagena.libptp.PtpEvent;
+import com.fimagena.libptp.PtpTransferProgress;
 import com.fimagena.libptp.PtpTransport;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.concurrent.BlockingDeque;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 
@@ -48,8 +50,11 @@ public class PtpIpConnection extends PtpTransport {
 
     private final static long PING_TIMEGAP = 20000; // ping after 20 seconds of inactivity
 
+    public final static long DEFAULT_CONNECT_TIMEOUT  = 10000;          // ms, for the TCP connect and again for the init handshake
+    public final static long DEFAULT_METADATA_TIMEOUT = 30000;          // ms, for a whole transaction
+    public final static long DEFAULT_BULK_TIMEOUT     = 30000;          // ms, without progress
+
     private final static Logger LOG = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-    static {LOG.setLevel(Level.SEVERE);}
 
 
     public static class PtpIpAddress extends PtpTransport.ResponderAddress {
@@ -83,13 +88,11 @@ public class PtpIpConnection extends PtpTransport {
     private TcpConnection mCommandConnection;
     private TcpConnection mEventConnection;
 
-    // TcpConnections send us PtpPackets in our incoming queue...
-    private BlockingDeque<PtpIpPacket> mPacketInQueue             = new LinkedBlockingDeque<>(MAX_QUEUE_SIZE);
-
-    // ...which we then distribute into various outgoing queues
+    // TcpConnections dispatch PtpPackets on their reading threads straight into the outgoing queues
     private BlockingQueue<PtpIpPacket> mInitPacketOutQueue        = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
-    private BlockingDeque<PtpIpPacket> mTransactionPacketOutQueue = new LinkedBlockingDeque<>(MAX_QUEUE_SIZE);
+    private PacketHandoff              mTransactionPacketOutQueue = new PacketHandoff(MAX_QUEUE_SIZE);
     private BlockingQueue<PtpEvent>    mEventOutQueue             = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
+    private final AtomicBoolean        mHasFailed                 = new AtomicBoolean();
 
     @Override public BlockingQueue<PtpEvent> getEventQueue() {return mEventOutQueue;}
 
@@ -97,126 +100,194 @@ public class PtpIpConnection extends PtpTransport {
     private ConnectionStatus mStatus;
 
     private PtpIpSession mSingleSession;
+    private final AtomicBoolean mSingleSessionClaimed = new AtomicBoolean(); // taken by whoever opens it, so only one does
+
+    private volatile Thread mPingTimer;
+    private volatile long mPingTimerWakeUp;                             // System.nanoTime() it's parked until
+
+    private PacketTrace mPacketTrace;
+    private int mSoReceiveBufferSize = 0, mSoSendBufferSize = 0;
+    private long mProgressInterval = PtpTransferProgress.DEFAULT_SAMPLE_INTERVAL;
+    private long mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private long mMetadataTimeout = DEFAULT_METADATA_TIMEOUT, mBulkTimeout = DEFAULT_BULK_TIMEOUT;
+    private PtpIpSelector mSelector;
+
+    // the packets are processed on the TcpConnections' reading threads - all that's left is pinging the
+    // responder when it's been quiet for a while, and closing the command channel under a blocked write once
+    // the transaction's deadline has passed (in selector mode, the selector's ticks and awaitWritable do that)
+    private class PingTimer implements Runnable {
+        public void run() {
+            while (mStatus != ConnectionStatus.CLOSED) {
+                // published before looking at the deadline, so that setCommandChannelSendDeadline never misses us
+                long wakeUp = System.nanoTime() + checkIdle() * 1000000;
+                mPingTimerWakeUp = wakeUp;
+                long untilDeadline = mCommandConnection.checkSendDeadline();
+                if (untilDeadline != Long.MAX_VALUE) {
+                    wakeUp = Math.min(wakeUp - System.nanoTime(), untilDeadline * 1000000) + System.nanoTime();
+                    mPingTimerWakeUp = wakeUp;
+                }
+                LockSupport.parkNanos(wakeUp - System.nanoTime());     // close() interrupts, which unparks
+            }
 
-    private PtpIpPacketListener mPtpIpPacketListener;
-
-    private class PtpIpPacketListener extends Thread {
-
-        private void putBlocking(BlockingQueue<PtpIpPacket> queue, PtpIpPacket packet) {
-            while (true) {try {queue.put(packet); return;} catch (InterruptedException e) {}}
+            // We're done, remove reference - not strictly necessary but the Thread is toast - might as well clean up resources
+            mPingTimer = null;
         }
+    }
 
-        private void putFirstBlocking(BlockingDeque<PtpIpPacket> queue, PtpIpPacket packet) {
-            while (true) {try {queue.putFirst(packet); return;} catch (InterruptedException e) {}}
+    private final TcpConnection.PacketDispatcher mDispatcher = new TcpConnection.PacketDispatcher() {
+        @Override public boolean onPacket(PtpIpPacket packet) {return (mStatus == ConnectionStatus.CLOSED) || processPacket(packet);}
+        @Override public void onTick() {if (mStatus != ConnectionStatus.CLOSED) checkIdle();}
+    };
+
+    // blocking queue operations that don't give up on an interrupt - but leave the interrupt status set for
+    // the caller, rather than swallowing it
+    private static <E> void putUninterruptibly(BlockingQueue<E> queue, E element) {
+        boolean interrupted = false;
+        while (true) {
+            try {queue.put(element); break;}
+            catch (InterruptedException e) {interrupted = true;}
         }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
 
-        private void putEvent(PtpEvent event) {
-            if (mEventOutQueue == null) return;
-            while (true) {try {mEventOutQueue.put(event); return;} catch (InterruptedException e) {}}
+    // null if nothing came within the timeout (ms, 0 --> wait indefinitely)
+    static <E> E pollUninterruptibly(BlockingQueue<E> queue, long timeout) {
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + timeout * 1000000;
+        E element;
+        while (true) {
+            try {
+                if (timeout == 0) element = queue.take();
+                else element = queue.poll(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                break;
+            }
+            catch (InterruptedException e) {interrupted = true;}
         }
+        if (interrupted) Thread.currentThread().interrupt();
+        return element;
+    }
 
-        public void run() {
-            PtpIpPacket packet = null;
-            while (mStatus != ConnectionStatus.CLOSED) {
+    // on a selector loop nothing may block: a full queue refuses the packet (false) and the loop stops
+    // reading that connection until it's taken (see PtpIpSelector)
+    private boolean putBlocking(BlockingQueue<PtpIpPacket> queue, PtpIpPacket packet) {
+        if (mSelector != null) return queue.offer(packet);
+        putUninterruptibly(queue, packet);
+        return true;
+    }
 
-                // ---------------------------------------------------------------------------------
-                // Check time since last traffic and send ping if over timeout value
+    private boolean putTransactionPacket(PtpIpPacket packet) {
+        if (mSelector != null) return mTransactionPacketOutQueue.offer(packet);
+        mTransactionPacketOutQueue.put(packet);
+        return true;
+    }
 
-                long remaining = PING_TIMEGAP - (System.currentTimeMillis() - Math.max(mCommandConnection.getLastActivityTimestamp(), mEventConnection.getLastActivityTimestamp()));
-                if (remaining <= 0) {
-                    // Sending ping when timing out; however, we're ignoring the pongs
-                    try {mEventConnection.sendPacket(new PtpIpPacket.ProbeRequest());} catch (IOException e) {}
-                    remaining = PING_TIMEGAP;
-                }
-                try {packet = mPacketInQueue.poll(remaining, TimeUnit.MILLISECONDS);} catch (InterruptedException e) {continue;}
-                if (packet == null) continue;
+    private boolean putEvent(PtpEvent event) {
+        if (mEventOutQueue == null) return true;
+        if (mSelector != null) return mEventOutQueue.offer(event);
+        putUninterruptibly(mEventOutQueue, event);
+        return true;
+    }
 
-                // ---------------------------------------------------------------------------------
-                // Process packets according to type
+    // returns the time until the next ping is due
+    private long checkIdle() {
+        // ---------------------------------------------------------------------------------
+        // Check time since last traffic and send ping if over timeout value
 
-                // ---------------------------------------------------------------------------------
-                // Internal packets
+        long remaining = PING_TIMEGAP - (System.currentTimeMillis() - Math.max(mCommandConnection.getLastActivityTimestamp(), mEventConnection.getLastActivityTimestamp()));
+        if (remaining <= 0) {
+            // Sending ping when timing out; however, we're ignoring the pongs
+            try {mEventConnection.sendControlPacket(new PtpIpPacket.ProbeRequest());} catch (IOException e) {}
+            remaining = PING_TIMEGAP;
+        }
+        return remaining;
+    }
 
-                // if LoadStatus for a transaction --> send onwards
-                if (packet instanceof PtpIpPacket.LoadStatus) {
-                    if (((PtpIpPacket.LoadStatus) packet).mLoadedPacket instanceof PtpIpPacket.TransactionPacket)
-                        putBlocking(mTransactionPacketOutQueue, packet);
-                }
+    // false only if a queue was full on a selector loop - nothing has been done with the packet then
+    private boolean processPacket(PtpIpPacket packet) {
+        // ---------------------------------------------------------------------------------
+        // Process packets according to type
 
-                // if Error --> something happened, let's close down and tell everybody
-                else if (packet instanceof PtpIpPacket.Error) {
-                    // close downward stack
-                    close();
+        // ---------------------------------------------------------------------------------
+        // Internal packets
 
-                    mSingleSession.setOpened(false);
+        // if Error --> something happened, let's close down and tell everybody (once - both channels might fail)
+        if (packet instanceof PtpIpPacket.Error) {
+            if (mHasFailed.getAndSet(true)) return true;
+            if (mPacketTrace != null) LOG.severe("PTPIP: Connection failed, packets leading up to it:\n" + mPacketTrace.dump());
 
-                    // tell upward stack
-                    putBlocking(mInitPacketOutQueue, packet);
-                    putBlocking(mTransactionPacketOutQueue, packet);
-                    putEvent(new PtpEvent.Error(((PtpIpPacket.Error) packet).mException));
-                }
+            // close downward stack
+            close();
 
-                // ---------------------------------------------------------------------------------
-                // Probing packets
+            mSingleSession.setOpened(false);
 
-                // if Ping --> send Pong
-                else if (packet instanceof PtpIpPacket.ProbeRequest) {
-                    try {packet.getSourceConnection().sendPacket(new PtpIpPacket.ProbeResponse());}
-                    catch (IOException e) {}
-                }
+            // tell upward stack - the connection is gone, so there's no point in holding up the loop for it
+            mInitPacketOutQueue.offer(packet);
+            mTransactionPacketOutQueue.fail(packet);
+            if (!putEvent(new PtpEvent.Error(((PtpIpPacket.Error) packet).mException))) LOG.warning("PTPIP: Event queue full, error event dropped!");
+        }
 
-                // if Pong --> ignore
-                else if (packet instanceof PtpIpPacket.ProbeResponse) {}
+        // ---------------------------------------------------------------------------------
+        // Probing packets
 
-                // ---------------------------------------------------------------------------------
-                // Init packets
+        // if Ping --> send Pong
+        else if (packet instanceof PtpIpPacket.ProbeRequest) {
+            try {packet.getSourceConnection().sendControlPacket(new PtpIpPacket.ProbeResponse());}
+            catch (IOException e) {}
+        }
 
-                // if InitPacket --> check for correct state and send onwards
-                else if (packet instanceof PtpIpPacket.InitPacket) {
-                    if (mStatus == ConnectionStatus.INITIALIZED) putBlocking(mInitPacketOutQueue, packet);
-                    else {
-                        LOG.severe("PTPIP: Protocol violation (received InitPacket but not in Init state) - closing connection!");
-                        putFirstBlocking(mPacketInQueue, new PtpIpPacket.Error(new PtpIpExceptions.ProtocolViolation("Wrong PacketType: Received InitPacket but not in Init state!")));
-                    }
-                }
+        // if Pong --> ignore
+        else if (packet instanceof PtpIpPacket.ProbeResponse) {}
 
-                // ---------------------------------------------------------------------------------
-                // Transaction packets
+        // ---------------------------------------------------------------------------------
+        // Init packets
 
-                // if Event --> send a layer upwards (and cancel also onwards to be sure)
-                else if (packet instanceof PtpIpPacket.Event) {
-                    PtpIpPacket.Event eventPacket = (PtpIpPacket.Event) packet;
-                    putEvent(new PtpEvent(new PtpDataType.EventCode(eventPacket.mEventCode), new PtpDataType.UInt32(eventPacket.mTransactionId), eventPacket.mParameters));
-                    if (eventPacket.mEventCode == PtpEvent.EVENTCODE_CancelTransaction) putBlocking(mTransactionPacketOutQueue, packet);
-                }
+        // if InitPacket --> check for correct state and send onwards
+        else if (packet instanceof PtpIpPacket.InitPacket) {
+            if (mStatus == ConnectionStatus.INITIALIZED) return putBlocking(mInitPacketOutQueue, packet);
+            else {
+                LOG.severe("PTPIP: Protocol violation (received InitPacket but not in Init state) - closing connection!");
+                processPacket(new PtpIpPacket.Error(new PtpIpExceptions.ProtocolViolation("Wrong PacketType: Received InitPacket but not in Init state!")));
+            }
+        }
 
-                // if TransactionPacket --> check for correct state and send onwards
-                else if (packet instanceof PtpIpPacket.TransactionPacket) {
-                    if (mStatus == ConnectionStatus.CONNECTED) putBlocking(mTransactionPacketOutQueue, packet);
-                    else {
-                        LOG.severe("PTPIP: Protocol violation (received TransactionPacket but not in Connected state) - closing connection!");
-                        putFirstBlocking(mPacketInQueue, new PtpIpPacket.Error(new PtpIpExceptions.ProtocolViolation("Wrong PacketType: Received TransactionPacket but not in Connected state!")));
-                    }
-                }
+        // ---------------------------------------------------------------------------------
+        // Transaction packets
+
+        // if Event --> send a layer upwards (and cancel also onwards to be sure)
+        else if (packet instanceof PtpIpPacket.Event) {
+            PtpIpPacket.Event eventPacket = (PtpIpPacket.Event) packet;
+            // the loop is the only producer, so with room checked first both hand-overs go through
+            if ((mSelector != null) && (mEventOutQueue != null) && (mEventOutQueue.remainingCapacity() == 0)) return false;
+            if ((eventPacket.mEventCode == PtpEvent.EVENTCODE_CancelTransaction) && !putTransactionPacket(packet)) return false;
+            if (!putEvent(new PtpEvent(new PtpDataType.EventCode(eventPacket.mEventCode), new PtpDataType.UInt32(eventPacket.mTransactionId), eventPacket.mParameters)))
+                LOG.warning("PTPIP: Event queue full, event dropped!");
+        }
 
-                // ---------------------------------------------------------------------------------
-                // if Other --> can't happen, there is nothing else --> Error
-                else {
-                    LOG.severe("PTPIP: Encountered unknown internal packet type!");
-                    putFirstBlocking(mPacketInQueue, new PtpIpPacket.Error(new PtpIpExceptions.MalformedPacket("Unknown internal packet type!")));
-                }
+        // if TransactionPacket --> check for correct state and send onwards
+        else if (packet instanceof PtpIpPacket.TransactionPacket) {
+            if (mStatus == ConnectionStatus.CONNECTED) return putTransactionPacket(packet);
+            else {
+                LOG.severe("PTPIP: Protocol violation (received TransactionPacket but not in Connected state) - closing connection!");
+                processPacket(new PtpIpPacket.Error(new PtpIpExceptions.ProtocolViolation("Wrong PacketType: Received TransactionPacket but not in Connected state!")));
             }
+        }
 
-            // We're done listening, remove reference - not strictly necessary but the Thread is toast - might as well clean up resources
-            mPtpIpPacketListener = null;
+        // ---------------------------------------------------------------------------------
+        // if Other --> can't happen, there is nothing else --> Error
+        else {
+            LOG.severe("PTPIP: Encountered unknown internal packet type!");
+            processPacket(new PtpIpPacket.Error(new PtpIpExceptions.MalformedPacket("Unknown internal packet type!")));
         }
+        return true;
     }
 
     public PtpIpConnection() {this(null);}
     public PtpIpConnection(BlockingQueue<PtpEvent> eventOutQueue){
-        // we use only one packet-queue for both TCP-channels
-        mCommandConnection = new TcpConnection(mPacketInQueue);
-        mEventConnection   = new TcpConnection(mPacketInQueue);
+        // both TCP-channels hand their packets to the same dispatcher
+        mCommandConnection = new TcpConnection(mDispatcher);
+        mEventConnection   = new TcpConnection(mDispatcher);
+        mCommandConnection.setConnectTimeout((int) mConnectTimeout);
+        mEventConnection.setConnectTimeout((int) mConnectTimeout);
 
         // ability to set EventOutQueue only used for add'l session based on add'l connection with same EventQueue
         if (eventOutQueue != null) mEventOutQueue = eventOutQueue;
@@ -234,26 +305,108 @@ public class PtpIpConnection extends PtpTransport {
     }
 
     @Override public PtpTransport.Session openSession() throws TransportDataError, TransportIOError, TransportOperationFailed, PtpExceptions.PtpProtocolViolation {
-        if (mSingleSession.isOpened()) {
+        if (!mSingleSessionClaimed.compareAndSet(false, true)) {
             PtpIpConnection connection = new PtpIpConnection(mEventOutQueue);
+            connection.setPacketTrace(mPacketTrace);
+            connection.setSocketBufferSizes(mSoReceiveBufferSize, mSoSendBufferSize);
+            connection.setProgressInterval(mProgressInterval);
+            connection.setConnectTimeout(mConnectTimeout);
+            connection.setTransactionTimeouts(mMetadataTimeout, mBulkTimeout);
+            if (mSelector != null) connection.setSelector(mSelector);
+            connection.setThreadFactory(mThreadFactory);
             connection.connect(mAddress, mHostId);
-            return connection.openSession();
-            //FIXME: add'l connection is never properly closed - no reference is being held
+            PtpIpSession session = (PtpIpSession) connection.openSession();
+            session.setClosesConnection(true); // add'l connection only lives as long as its session
+            return session;
         }
 
-        PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_OpenSession);
-        request.setParameters(new long[]{SESSION_ID});
-        PtpOperation.Response response = mSingleSession.executeNullTransaction(request);
-        response.validate();
-        if (!response.isSuccess()) throw new PtpIpExceptions.OperationFailed("OpenSession", response.getResponseCode());
-        mSingleSession.setOpened(true);
+        boolean isOpened = false;
+        try {
+            PtpOperation.Request request = PtpOperation.createRequest(PtpOperation.OPSCODE_OpenSession);
+            request.setParameters(new long[]{SESSION_ID});
+            PtpOperation.Response response = mSingleSession.executeNullTransaction(request);
+            response.validate();
+            if (!response.isSuccess()) throw new PtpIpExceptions.OperationFailed("OpenSession", response.getResponseCode());
+            mSingleSession.setOpened(true);
+            isOpened = true;
+        }
+        finally {if (!isOpened) mSingleSessionClaimed.set(false);}
 
         return mSingleSession;
     }
+    // the session on this connection's own channels can be opened again
+    protected void onSessionClosed(PtpIpSession session) {if (session == mSingleSession) mSingleSessionClaimed.set(false);}
+
+    // records all packets on both channels; null (the default) turns tracing off
+    public void setPacketTrace(PacketTrace trace) {
+        mPacketTrace = trace;
+        mCommandConnection.setPacketTrace(trace);
+        mEventConnection.setPacketTrace(trace);
+    }
+    public PacketTrace getPacketTrace() {return mPacketTrace;}
+
+    // SO_RCVBUF/SO_SNDBUF for both channels (0 --> system default) - must be set before connecting
+    public void setSocketBufferSizes(int receiveBufferSize, int sendBufferSize) {
+        mSoReceiveBufferSize = receiveBufferSize;
+        mSoSendBufferSize = sendBufferSize;
+        mCommandConnection.setSocketBufferSizes(receiveBufferSize, sendBufferSize);
+        mEventConnection.setSocketBufferSizes(receiveBufferSize, sendBufferSize);
+    }
+
+    // ms, 0 --> none - must be set before connecting
+    public void setConnectTimeout(long timeout) {
+        mConnectTimeout = timeout;
+        mCommandConnection.setConnectTimeout((int) timeout);
+        mEventConnection.setConnectTimeout((int) timeout);
+    }
+
+    // deadlines for the sessions' transactions (ms, 0 --> none): a metadata operation has to complete within
+    // its timeout, a bulk transfer (objects, thumbs, anything streaming through a sink or from a source) may
+    // run as long as it likes but must not stall for longer than its timeout. Can be changed per session
+    // (PtpIpSession) and per request (PtpOperation.Request.setTimeout)
+    public void setTransactionTimeouts(long metadataTimeout, long bulkTimeout) {
+        mMetadataTimeout = metadataTimeout;
+        mBulkTimeout = bulkTimeout;
+        mSingleSession.setTransactionTimeouts(metadataTimeout, bulkTimeout);
+    }
+
+    // how often a transaction's DataLoadListener gets told about its progress at most (ms)
+    public void setProgressInterval(long interval) {mProgressInterval = interval;}
+    public long getProgressInterval() {return mProgressInterval;}
+
+    // receive on the selector's shared loop threads instead of three listener threads of our own - must be set before connecting
+    public void setSelector(PtpIpSelector selector) {
+        mSelector = selector;
+        PtpIpSelector.Loop loop = selector.nextLoop();
+        mCommandConnection.setSelectorLoop(loop);
+        mEventConnection.setSelectorLoop(loop);
+    }
+
+    @Override public void setThreadFactory(ThreadFactory threadFactory) {
+        super.setThreadFactory(threadFactory);
+        mCommandConnection.setThreadFactory(threadFactory);
+        mEventConnection.setThreadFactory(threadFactory);
+    }
+
+    // payloads can only be taken straight off a blocking channel
+    protected boolean canReceiveDirectly() {return !mCommandConnection.isSelectorDriven();}
 
     protected void sendCommandChannelPacket(PtpIpPacket packet) throws IOException {mCommandConnection.sendPacket(packet);}
+    protected void sendCommandChannelPackets(PtpIpPacket... packets) throws IOException {mCommandConnection.sendPackets(packets);}
+    protected void sendCommandChannelData(boolean isEndData, long transactionId, PtpTransport.DataSource source, int length) throws IOException {mCommandConnection.sendDataPacket(isEndData, transactionId, source, length);}
+    protected void sendCommandChannelData(PtpIpPacket[] preceding, boolean isEndData, long transactionId, PtpTransport.DataSource source, int length) throws IOException {mCommandConnection.sendDataPacket(preceding, isEndData, transactionId, source, length);}
     protected void sendEventChannelPacket(PtpIpPacket.Event packet) throws IOException {mEventConnection.sendPacket(packet);}
 
+    protected ReadableByteChannel getCommandChannelInput() {return mCommandConnection.getInputChannel();}
+    protected void setCommandChannelReceiver(PtpIpPacket.PayloadReceiver receiver) {mCommandConnection.setPayloadReceiver(receiver);}
+    protected void setCommandChannelProgress(PtpTransferProgress progress) {mCommandConnection.setReceiveProgress(progress);}
+    protected void setCommandChannelSendDeadline(long deadline) {
+        mCommandConnection.setSendDeadline(deadline);
+        Thread pingTimer = mPingTimer;
+        if ((pingTimer != null) && (deadline - mPingTimerWakeUp < 0)) LockSupport.unpark(pingTimer); // it has to watch the deadline
+    }
+    protected void clearCommandChannelSendDeadline() {mCommandConnection.clearSendDeadline();}
+
     private PtpIpPacket.InitPacket connectChannel(TcpConnection tcpConnection, InetSocketAddress address, PtpIpPacket.InitPacket initPacket, Class expectedAnswer)
             throws PtpIpExceptions.IOError, PtpIpExceptions.MalformedPacket, PtpIpExceptions.ProtocolViolation, PtpIpExceptions.OperationFailed {
         try {
@@ -262,9 +415,8 @@ public class PtpIpConnection extends PtpTransport {
         }
         catch (IOException e) {close(); throw new PtpIpExceptions.IOError("Could not connect channel!", e);}
 
-        // takeBlocking
-        PtpIpPacket packet = null;
-        while (packet == null) {try {packet = mInitPacketOutQueue.take();} catch (InterruptedException e) {}}
+        PtpIpPacket packet = pollUninterruptibly(mInitPacketOutQueue, mConnectTimeout);
+        if (packet == null) {close(); throw new PtpIpExceptions.Timeout("No answer to " + initPacket.getClass().getSimpleName() + " within " + mConnectTimeout + " ms!");}
 
         if (packet instanceof PtpIpPacket.InitFail)
             throw new PtpIpExceptions.OperationFailed("InitRequest", ((PtpIpPacket.InitFail) packet).mReason);
@@ -280,8 +432,10 @@ public class PtpIpConnection extends PtpTransport {
         mHostId = (PtpIpHostId) hostId;
         mAddress = (PtpIpAddress) address;
 
-        mPtpIpPacketListener = new PtpIpPacketListener();
-        mPtpIpPacketListener.start();
+        if (mSelector == null) {
+            mPingTimer = mThreadFactory.newThread(new PingTimer());
+            mPingTimer.start();
+        }
 
         // -----------------------------------------------------------------------------------------
         // Open command and event channel
@@ -304,7 +458,7 @@ public class PtpIpConnection extends PtpTransport {
     public void close() {
         // stop listening
         mStatus = ConnectionStatus.CLOSED;
-        if (mPtpIpPacketListener != null) mPtpIpPacketListener.interrupt();
+        if (mPingTimer != null) mPingTimer.interrupt();
 
         mSingleSession.setOpened(false);
 
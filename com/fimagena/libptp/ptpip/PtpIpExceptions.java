@@ -51,6 +51,12 @@ public class PtpIpExceptions {
         public IOError(String s, IOException e) {super(s, e);}
     }
 
+    // the responder didn't answer in time
+    public static class Timeout extends IOError {
+        private static final long serialVersionUID = 1L;
+        public Timeout(String s) {super(s, null);}
+    }
+
     public static class OperationFailed extends PtpTransport.TransportOperationFailed {
         public OperationFailed(String s, long responseCode) {super("Responder failed on " + s + " (Response: " + String.format("0x%08x", responseCode) + ")!");}
     }
@@ -21,6 +21,8 @@ package com.fimagena.libptp.ptpip;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 public abstract class PtpIpPacket {
@@ -45,6 +47,9 @@ public abstract class PtpIpPacket {
     private   static final int DATAPHASE_OUT            = 0x00000002;
     private   static final int DATAPHASE_UNKNOWN        = 0x00000003; // guessed value - not yet observed (but we're not using it anyway)
 
+    // anything but Data/EndData is a handful of fields - a larger header is corrupt (or hostile), not a packet to buffer
+    protected static final int MAX_CONTROL_PACKET_LENGTH = 4096;
+
     protected long mLength;                                             // uint32
     protected long mPacketType;                                         // uint32
     private TcpConnection mSourceConnection;
@@ -52,36 +57,88 @@ public abstract class PtpIpPacket {
     protected void setSourceConnection(TcpConnection tcpConnection) {mSourceConnection = tcpConnection;}
     protected TcpConnection getSourceConnection() {return mSourceConnection;}
 
-    protected void writePayload(DataBuffer out) {}
+    protected int getSerializedLength() {return 8;}                    // header + payload, including any data segment
+    protected void writePayload(ByteBuffer out) {}                      // little-endian, without the data segment
+    protected ByteBuffer getDataSegment() {return null;}                // bulk payload of Data/EndData packets
     protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {}
     public String toString() {return "[Length: " + mLength + ", PacketType: " + String.format("0x%08x", mPacketType) + " (" + this.getClass().getName().substring(this.getClass().getName().lastIndexOf("$") + 1) + ")]";}
 
+    // encodes header and payload in one pass - everything but the data segment, which can be sent from where it is
+    public void serializePacket(ByteBuffer out) {
+        out.putInt(getSerializedLength()).putInt((int) mPacketType);
+        writePayload(out);
+    }
+
     public byte[] serializePacket() {
-        DataBuffer packetBuffer = new DataBuffer();
-        packetBuffer.writeUInt32(0).writeUInt32(mPacketType);
-        writePayload(packetBuffer);
+        ByteBuffer out = ByteBuffer.allocate(getSerializedLength()).order(ByteOrder.LITTLE_ENDIAN);
+        serializePacket(out);
+        ByteBuffer dataSegment = getDataSegment();
+        if (dataSegment != null) out.put(dataSegment);
+        return out.array();
+    }
 
-        byte[] packetData = packetBuffer.getData();
-        System.arraycopy(new DataBuffer(4).writeUInt32(packetData.length).getData(), 0, packetData, 0, 4);
 
-        return packetData;
-    }
+    // packets keeping hold of their (pooled) receive buffer must be released once consumed
+    protected boolean retainsPayloadBuffer() {return false;}
+    public void release() {}
+
 
+    // lets a data phase's payload bypass the packet buffers and go straight from the stream into its target
+    interface PayloadReceiver {
+        void onStartData(long transactionId, long dataLength);
+        boolean receivePayload(long transactionId, int length) throws IOException; // false --> read as usual
+    }
 
-    interface ReadingListener {void onLoaded(PtpIpPacket packet, int loadedBytes);}
-    public static PtpIpPacket readPacket(InputStream in) throws IOException, PtpIpExceptions.MalformedPacket {return readPacket(in, null);}
-    public static PtpIpPacket readPacket(InputStream in, final ReadingListener listener) throws IOException, PtpIpExceptions.MalformedPacket {
+    public static PtpIpPacket readPacket(InputStream in) throws IOException, PtpIpExceptions.MalformedPacket {return readPacket(in, null, null, null);}
+    // the data listener is told about the bytes of data-phase payloads (not counting the transaction id) as they're read
+    static PtpIpPacket readPacket(InputStream in, BufferPool pool, DataBuffer.LoadingListener dataListener, PayloadReceiver receiver) throws IOException, PtpIpExceptions.MalformedPacket {
         // -----------------------------------------------------------------------------------------
         // Read 8-byte PtpIp-header and instantiate correct packet
 
-        DataBuffer ptpIpHeader = new DataBuffer(8);
+        DataBuffer ptpIpHeader = pool != null ? pool.acquire(8) : new DataBuffer(8);
         ptpIpHeader.fill(in, 8);
 
         long packetLength = ptpIpHeader.readUInt32();
-        if (packetLength < 8) throw new PtpIpExceptions.MalformedPacket("PTP/IP PacketLength header < 8 bytes (" + packetLength + ")");
-
         long packetType = ptpIpHeader.readUInt32();
-        final PtpIpPacket packet;
+        ptpIpHeader.release();
+
+        PtpIpPacket packet = createPacket(packetLength, packetType);
+
+        // -----------------------------------------------------------------------------------------
+        // Read payload and create packet
+
+        int payloadLength = (int) packetLength - 8;
+        boolean isData = (packet instanceof DataPacket) && (payloadLength >= 4);
+
+        DataBuffer ptpIpPayload = pool != null ? pool.acquire(payloadLength) : new DataBuffer(payloadLength);
+        if (isData) {
+            // get the transaction id first - the receiver might take the rest straight from the stream
+            ptpIpPayload.fill(in, 4);
+            long transactionId = ptpIpPayload.getUInt32(0);
+            if ((receiver != null) && receiver.receivePayload(transactionId, payloadLength - 4)) {
+                ptpIpPayload.release();
+                ((DataPacket) packet).mTransactionId = transactionId;
+                ((DataPacket) packet).mReceivedLength = payloadLength - 4;
+                ((DataPacket) packet).mIsReceivedDirectly = true;
+                return packet;
+            }
+            ptpIpPayload.fill(in, payloadLength - 4, dataListener);
+        }
+        else ptpIpPayload.fill(in, payloadLength);
+        packet.readPayload(ptpIpPayload);
+        if (!packet.retainsPayloadBuffer()) ptpIpPayload.release();
+
+        if ((receiver != null) && (packet instanceof StartData))
+            receiver.onStartData(((StartData) packet).mTransactionId, ((StartData) packet).mDataLength);
+
+        return packet;
+    }
+
+    // empty packet of the given type, to be filled by readPayload
+    static PtpIpPacket createPacket(long packetLength, long packetType) throws PtpIpExceptions.MalformedPacket {
+        if (packetLength < 8) throw new PtpIpExceptions.MalformedPacket("PTP/IP PacketLength header < 8 bytes (" + packetLength + ")");
+        if (packetLength > Integer.MAX_VALUE) throw new PtpIpExceptions.MalformedPacket("PTP/IP PacketLength header too large (" + packetLength + ")");
+        PtpIpPacket packet;
         switch ((int) packetType) {
             case PKT_InitCommandRequest:packet = new InitCommandRequest();  break;
             case PKT_InitCommandAck:    packet = new InitCommandAck();      break;
@@ -99,19 +156,9 @@ public abstract class PtpIpPacket {
             case PKT_ProbeResponse:     packet = new ProbeResponse();       break;
             default: throw new PtpIpExceptions.MalformedPacket("Unknown packet type: " + String.format("0x%04x", packetType));
         }
+        if ((packetLength > MAX_CONTROL_PACKET_LENGTH) && (packetType != PKT_Data) && (packetType != PKT_EndData))
+            throw new PtpIpExceptions.MalformedPacket("PTP/IP PacketLength header too large for packet type " + String.format("0x%04x", packetType) + " (" + packetLength + ")");
         packet.mLength = packetLength;
-
-        // -----------------------------------------------------------------------------------------
-        // Read payload and create packet
-
-        DataBuffer.LoadingListener loadListener = listener == null ? null : new DataBuffer.LoadingListener() {
-            @Override public void onLoaded(int loadedBytes) {listener.onLoaded(packet, loadedBytes + 8);}
-        };
-
-        DataBuffer ptpIpPayload = new DataBuffer((int) packetLength - 8);
-        ptpIpPayload.fill(in, (int) packetLength - 8, loadListener);
-        packet.readPayload(ptpIpPayload);
-
         return packet;
     }
 
@@ -121,6 +168,13 @@ public abstract class PtpIpPacket {
     // ---------------------------------------------------------------------------------------------
     // Helper functions
 
+    private static void putUtf16String(ByteBuffer out, String string) {
+        for (int i = 0; i < string.length(); i++) out.putChar(string.charAt(i));
+        out.putChar((char) 0);
+    }
+
+    private static void putUInt32Array(ByteBuffer out, long[] values) {for (long l : values) out.putInt((int) l);}
+
     private static String arrayToString(long[] params) {
         String output = "{ ";
         for (long l : params) output += String.format("0x%08x, ", l);
@@ -143,10 +197,11 @@ public abstract class PtpIpPacket {
         protected String mFriendlyName;                                 // uint16[< 39 + 1]
         protected int mProtVersionMajor, mProtVersionMinor;             // uint32
 
-        @Override protected void writePayload(DataBuffer out) {
-            for (short s : mGuid) out.writeUInt8(s);
-            out.writeUtf16String(mFriendlyName);
-            out.writeUInt32(mProtVersionMinor + (mProtVersionMajor << 16));
+        @Override protected int getSerializedLength() {return super.getSerializedLength() + 16 + 2 * (mFriendlyName.length() + 1) + 4;}
+        @Override protected void writePayload(ByteBuffer out) {
+            for (short s : mGuid) out.put((byte) s);
+            putUtf16String(out, mFriendlyName);
+            out.putInt(mProtVersionMinor + (mProtVersionMajor << 16));
         }
         @Override protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {
             for (int i = 0; i < 16; i++) mGuid[i] = in.readUInt8();
@@ -174,8 +229,9 @@ public abstract class PtpIpPacket {
         protected long mConnectionNumber;                               // uint32
         protected InitCommandRequest mResponseData = new InitCommandRequest();
 
-        @Override public void writePayload(DataBuffer out) {
-            out.writeUInt32(mConnectionNumber);
+        @Override protected int getSerializedLength() {return super.getSerializedLength() + 4 + mResponseData.getSerializedLength() - 8;}
+        @Override public void writePayload(ByteBuffer out) {
+            out.putInt((int) mConnectionNumber);
             mResponseData.writePayload(out);
         }
         @Override protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {
@@ -196,7 +252,8 @@ public abstract class PtpIpPacket {
     public static class InitEventRequest extends InitPacket {
         protected long mConnectionNumber;                               // uint32
 
-        @Override public void writePayload(DataBuffer out) {out.writeUInt32(mConnectionNumber);}
+        @Override protected int getSerializedLength() {return super.getSerializedLength() + 4;}
+        @Override public void writePayload(ByteBuffer out) {out.putInt((int) mConnectionNumber);}
         @Override protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {mConnectionNumber = in.readUInt32();}
 
         @Override public String toString() {return super.toString() + ":[ConnectionNumber: " + mConnectionNumber + "]";}
@@ -214,7 +271,8 @@ public abstract class PtpIpPacket {
     public static class InitFail extends InitPacket {
         protected long mReason;                                         // uint32
 
-        @Override public void writePayload(DataBuffer out) {out.writeUInt32(mReason);}
+        @Override protected int getSerializedLength() {return super.getSerializedLength() + 4;}
+        @Override public void writePayload(ByteBuffer out) {out.putInt((int) mReason);}
         @Override protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {mReason = in.readUInt32();}
 
         @Override public String toString() {return super.toString() + ":[Reason: " + String.format("0x%08x", mReason) + "]";}
@@ -231,7 +289,8 @@ public abstract class PtpIpPacket {
     protected static abstract class TransactionPacket extends PtpIpPacket {
         protected long mTransactionId;                                  // uint32
 
-        @Override protected void writePayload(DataBuffer out) {out.writeUInt32(mTransactionId);}
+        @Override protected int getSerializedLength() {return super.getSerializedLength() + 4;}
+        @Override protected void writePayload(ByteBuffer out) {out.putInt((int) mTransactionId);}
         @Override protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {mTransactionId = in.readUInt32();}
         @Override public String toString() {return super.toString() + ":[TransactionId: " + mTransactionId + "]";}
 
@@ -244,11 +303,12 @@ public abstract class PtpIpPacket {
         protected int mOperationCode;                                   // uint16
         protected long[] mParameters = new long[0];                     // uint32[<=5]
 
-        @Override protected void writePayload(DataBuffer out) {
-            out.writeUInt32(mDataPhaseInfo);
-            out.writeUInt16(mOperationCode);
+        @Override protected int getSerializedLength() {return super.getSerializedLength() + 6 + 4 * mParameters.length;}
+        @Override protected void writePayload(ByteBuffer out) {
+            out.putInt((int) mDataPhaseInfo);
+            out.putShort((short) mOperationCode);
             super.writePayload(out);
-            for (long l : mParameters) out.writeUInt32(l);
+            putUInt32Array(out, mParameters);
         }
         @Override protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {
             mDataPhaseInfo = in.readUInt32();
@@ -275,10 +335,11 @@ public abstract class PtpIpPacket {
         protected int mResponseCode;                                    // uint16
         protected long[] mParameters = new long[0];                     // uint32[<=5]
 
-        @Override protected void writePayload(DataBuffer out) {
-            out.writeUInt16(mResponseCode);
+        @Override protected int getSerializedLength() {return super.getSerializedLength() + 2 + 4 * mParameters.length;}
+        @Override protected void writePayload(ByteBuffer out) {
+            out.putShort((short) mResponseCode);
             super.writePayload(out);
-            for (long l : mParameters) out.writeUInt32(l);
+            putUInt32Array(out, mParameters);
         }
         @Override protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {
             mResponseCode = in.readUInt16();
@@ -303,10 +364,11 @@ public abstract class PtpIpPacket {
         protected int mEventCode;                                       // uint16
         protected long[] mParameters = new long[0];                     // uint32[<=3]
 
-        @Override protected void writePayload(DataBuffer out) {
-            out.writeUInt16(mEventCode);
+        @Override protected int getSerializedLength() {return super.getSerializedLength() + 2 + 4 * mParameters.length;}
+        @Override protected void writePayload(ByteBuffer out) {
+            out.putShort((short) mEventCode);
             super.writePayload(out);
-            for (long l : mParameters) out.writeUInt32(l);
+            putUInt32Array(out, mParameters);
         }
         @Override protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {
             mEventCode = in.readUInt16();
@@ -330,9 +392,10 @@ public abstract class PtpIpPacket {
     public static class StartData extends TransactionPacket {
         protected long mDataLength;                                     // uint64 (!! long not fully correct)
 
-        @Override protected void writePayload(DataBuffer out) {
+        @Override protected int getSerializedLength() {return super.getSerializedLength() + 8;}
+        @Override protected void writePayload(ByteBuffer out) {
             super.writePayload(out);
-            out.writeUInt64(mDataLength);
+            out.putLong(mDataLength);
         }
         @Override protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {
             super.readPayload(in);
@@ -349,46 +412,44 @@ public abstract class PtpIpPacket {
     }
 
 
-    public static class Data extends TransactionPacket {
-        protected byte[] mDataPayload;                                  // uint8[?]
+    protected static abstract class DataPacket extends TransactionPacket {
+        protected DataBuffer mDataPayload;                              // uint8[?] - read index at payload start
+        protected int mReceivedLength;                                  // payload went straight into a PayloadReceiver
+        protected boolean mIsReceivedDirectly = false;
 
-        @Override public void writePayload(DataBuffer out) {
-            super.writePayload(out);
-            out.writeObject(mDataPayload);
-        }
+        @Override protected int getSerializedLength() {return super.getSerializedLength() + (mDataPayload == null ? 0 : mDataPayload.available());}
+        @Override protected ByteBuffer getDataSegment() {return mDataPayload == null ? null : mDataPayload.asByteBuffer();}
         @Override protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {
             super.readPayload(in);
-            mDataPayload = in.readObject();
+            mDataPayload = in;                                          // keep the receive buffer, no copy
         }
-        @Override public String toString() {return super.toString() + ":[PayloadLength: " + mDataPayload.length + "]";}
+        @Override protected boolean retainsPayloadBuffer() {return true;}
+        @Override public void release() {if (mDataPayload != null) mDataPayload.release(); mDataPayload = null;}
+        @Override public String toString() {return super.toString() + ":[PayloadLength: " + getPayloadLength() + "]";}
+
+        public int getPayloadLength() {return mIsReceivedDirectly ? mReceivedLength : (mDataPayload == null ? 0 : mDataPayload.available());}
+        public boolean isReceivedDirectly() {return mIsReceivedDirectly;}
+
+        protected DataPacket(long packetType) {super(packetType);}
+    }
+
 
+    public static class Data extends DataPacket {
         public Data() {super(PKT_Data);}
         public Data(long transactionId, DataBuffer dataPayload) {
             this();
             mTransactionId = transactionId;
-            mDataPayload = dataPayload.getData();
+            mDataPayload = dataPayload;
         }
     }
 
 
-    public static class EndData extends TransactionPacket {
-        protected byte[] mDataPayload;                                  // uint8[?]
-
-        @Override public void writePayload(DataBuffer out) {
-            super.writePayload(out);
-            out.writeObject(mDataPayload);
-        }
-        @Override protected void readPayload(DataBuffer in) throws PtpIpExceptions.MalformedPacket {
-            super.readPayload(in);
-            mDataPayload = in.readObject();
-        }
-        @Override public String toString() {return super.toString() + ":[PayloadLength: " + mDataPayload.length + "]";}
-
+    public static class EndData extends DataPacket {
         public EndData() {super(PKT_EndData);}
         public EndData(long transactionId, DataBuffer dataPayload) {
             this();
             mTransactionId = transactionId;
-            mDataPayload = dataPayload.getData();
+            mDataPayload = dataPayload;
         }
     }
 
@@ -429,12 +490,4 @@ public abstract class PtpIpPacket {
         public Error() {super(PKT_Invalid);}
         public Error(Exception e) {this(); mException = e;}
     }
-
-    public static class LoadStatus extends InternalPacket {
-        public PtpIpPacket mLoadedPacket;
-        public int mLoadedBytes;
-
-        public LoadStatus() {super(PKT_Invalid);}
-        public LoadStatus(PtpIpPacket packet, int loadedBytes) {this(); mLoadedPacket = packet; mLoadedBytes = loadedBytes;}
-    }
 }
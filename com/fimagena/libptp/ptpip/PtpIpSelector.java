@@ -0,0 +1,159 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp.ptpip;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+
+public class PtpIpSelector {
+
+    // Event loops shared by many PtpIpConnections (see PtpIpConnection.setSelector): each loop thread
+    // multiplexes the command and event channels of its connections over one Selector, parses the packets
+    // as they come in and hands them straight to their connection - no listener threads per device.
+    // Packet handling runs on the loop thread, so it never blocks: probes are queued and written when the
+    // channel is writable, and a connection whose packets can't be handed over stops being read until
+    // they can (its socket buffer then pushes back on the responder).
+
+    private final static long TICK_INTERVAL = 1000;                     // idle checks (pings) per connection
+    private final static long STALL_RETRY_INTERVAL = 10;                // while a connection's packets wait for room
+
+    private final static Logger LOG = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+    private final Loop[] mLoops;
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+    private volatile boolean mIsClosed = false;
+
+    class Loop extends Thread {
+        private final Selector mSelector;
+        private final Queue<TcpConnection> mPendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<TcpConnection> mPendingWrites = new ConcurrentLinkedQueue<>();
+        private final List<TcpConnection> mStalledConnections = new ArrayList<>(); // loop thread only
+
+        private Loop(int index) throws IOException {
+            super("PtpIpSelector-" + index);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        // connection's channel must be connected and non-blocking
+        void register(TcpConnection connection) {
+            mPendingRegistrations.add(connection);
+            mSelector.wakeup();
+        }
+
+        // connection has control packets to flush - from any thread
+        void requestWrite(TcpConnection connection) {
+            mPendingWrites.add(connection);
+            mSelector.wakeup();
+        }
+
+        // connection's dispatcher refused a packet - on the loop thread
+        void suspendReading(TcpConnection connection) {
+            setInterest(connection, SelectionKey.OP_READ, false);
+            mStalledConnections.add(connection);
+        }
+
+        private void setInterest(TcpConnection connection, int operation, boolean isInterested) {
+            SelectionKey key = connection.getChannel().keyFor(mSelector);
+            if ((key == null) || !key.isValid()) return;
+            key.interestOps(isInterested ? key.interestOps() | operation : key.interestOps() & ~operation);
+        }
+
+        // a bug in packet handling takes down its connection, not the loop with everybody else's
+        private void onConnectionFailed(TcpConnection connection, RuntimeException e) {
+            LOG.severe("PTPIP: Unexpected error on selector loop - closing connection! (" + e + ")");
+            SelectionKey key = connection.getChannel().keyFor(mSelector);
+            if (key != null) key.cancel();
+            mStalledConnections.remove(connection);
+            try {connection.onReceiveError(e);} catch (RuntimeException ex) {}
+        }
+
+        public void run() {
+            long lastTick = System.currentTimeMillis();
+            while (!mIsClosed) {
+                TcpConnection connection;
+                while ((connection = mPendingRegistrations.poll()) != null) {
+                    try {connection.getChannel().register(mSelector, SelectionKey.OP_READ, connection);}
+                    catch (ClosedChannelException e) {}                 // closed before we got to it
+                }
+
+                while ((connection = mPendingWrites.poll()) != null) setInterest(connection, SelectionKey.OP_WRITE, true);
+
+                try {mSelector.select(mStalledConnections.isEmpty() ? TICK_INTERVAL : STALL_RETRY_INTERVAL);}
+                catch (IOException e) {LOG.severe("PTPIP: Selector failed - stopping! (" + e.getMessage() + ")"); break;}
+
+                for (SelectionKey key : mSelector.selectedKeys()) {
+                    connection = (TcpConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable() && connection.onWritable()) setInterest(connection, SelectionKey.OP_WRITE, false);
+                        if (key.isValid() && key.isReadable()) connection.onReadable();
+                    }
+                    catch (RuntimeException e) {onConnectionFailed(connection, e);}
+                }
+                mSelector.selectedKeys().clear();
+
+                for (int i = mStalledConnections.size() - 1; i >= 0; i--) {
+                    connection = mStalledConnections.get(i);
+                    try {
+                        if (!connection.retryStalledPacket()) continue;
+                        mStalledConnections.remove(i);
+                        setInterest(connection, SelectionKey.OP_READ, true);
+                    }
+                    catch (RuntimeException e) {onConnectionFailed(connection, e);}
+                }
+
+                if (System.currentTimeMillis() - lastTick >= TICK_INTERVAL) {
+                    for (SelectionKey key : mSelector.keys()) {
+                        if (!key.isValid()) continue;
+                        try {((TcpConnection) key.attachment()).onTick();}
+                        catch (RuntimeException e) {onConnectionFailed((TcpConnection) key.attachment(), e);}
+                    }
+                    lastTick = System.currentTimeMillis();
+                }
+            }
+            try {mSelector.close();} catch (IOException e) {}
+        }
+    }
+
+    public PtpIpSelector() throws IOException {this(1);}
+    public PtpIpSelector(int loopCount) throws IOException {
+        mLoops = new Loop[loopCount];
+        for (int i = 0; i < loopCount; i++) mLoops[i] = new Loop(i);
+        for (Loop loop : mLoops) loop.start();
+    }
+
+    // loops are handed out round-robin - both channels of a connection go to the same one
+    Loop nextLoop() {return mLoops[(mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];}
+
+    // connections still registered are not closed, they just stop receiving
+    public void close() {
+        mIsClosed = true;
+        for (Loop loop : mLoops) loop.mSelector.wakeup();
+    }
+}
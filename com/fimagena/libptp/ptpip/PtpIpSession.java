@@ -22,12 +22,15 @@ package com.fimagena.libptp.ptpip;
 import com.fimagena.libptp.PtpEvent;
 import com.fimagena.libptp.PtpExceptions;
 import com.fimagena.libptp.PtpOperation;
+import com.fimagena.libptp.PtpTransferProgress;
 import com.fimagena.libptp.PtpTransport;
 
 import java.io.IOException;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -35,23 +38,53 @@ public class PtpIpSession implements PtpTransport.Session {
     private PtpIpConnection mPtpIpConnection;
     private long mLastTransactionId;
     private boolean mIsOpened = false;
+    private boolean mClosesConnection = false;
 
-    private BlockingDeque<PtpIpPacket> mTransactionPacketInQueue;
+    private PacketHandoff mTransactionPacketInQueue;
+
+    // the transaction that can be cancelled - it's taken out by whoever sends the cancel, so that happens once
+    private final AtomicReference<PtpOperation.Request> mCancellableRequest = new AtomicReference<>();
+    private long mCancelledTransactionId = -1;                          // its late packets are dropped
+
+    // not synchronized: a virtual thread blocked in a transaction would stay pinned to its carrier
+    private final ReentrantLock mTransactionLock = new ReentrantLock();
 
     private enum TransactionStatus {REQUEST_SENT, DATA_STARTED, DATA_ENDED, RESPONSE_RECEIVED}
 
+    private final static int DATA_OUT_CHUNK_SIZE = 1024 * 1024;
+    private final static int SINK_STALL_LIMIT = 50; // sink writes without progress, backing off 1..10ms each, before giving up
+
+    // deadlines (see PtpIpConnection.setTransactionTimeouts), and the time a responder gets to confirm the
+    // cancel once one has passed - if it does, the session is still good
+    private volatile long mMetadataTimeout = PtpIpConnection.DEFAULT_METADATA_TIMEOUT;
+    private volatile long mBulkTimeout = PtpIpConnection.DEFAULT_BULK_TIMEOUT;
+    private final static long CANCEL_TIMEOUT = 2000;
+    private final static int[] BULK_OPERATIONS = {PtpOperation.OPSCODE_GetObject, PtpOperation.OPSCODE_GetThumb, PtpOperation.OPSCODE_GetPartialObject, PtpOperation.OPSCODE_SendObject};
+
     private final static Logger LOG = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 
 
-    public PtpIpSession(PtpIpConnection ptpIpConnection, BlockingDeque<PtpIpPacket> transactionPacketInQueue) {
+    PtpIpSession(PtpIpConnection ptpIpConnection, PacketHandoff transactionPacketInQueue) {
         mPtpIpConnection = ptpIpConnection;
         mLastTransactionId = 0;
         mTransactionPacketInQueue = transactionPacketInQueue;
     }
 
     protected void setOpened(boolean isOpened) {mIsOpened = isOpened;}
+    protected void setClosesConnection(boolean closesConnection) {mClosesConnection = closesConnection;}
     protected boolean isOpened() {return mIsOpened;}
 
+    public void setTransactionTimeouts(long metadataTimeout, long bulkTimeout) {
+        mMetadataTimeout = metadataTimeout;
+        mBulkTimeout = bulkTimeout;
+    }
+
+    private boolean isBulk(PtpOperation.Request request) {
+        if ((request.getDataSink() != null) || (request.getDataSource() != null)) return true;
+        for (int operationCode : BULK_OPERATIONS) if (request.getOperationCode() == operationCode) return true;
+        return false;
+    }
+
     private void testStatus(TransactionStatus currentStatus, TransactionStatus expectedStatus, PtpIpPacket packet) throws PtpIpExceptions.ProtocolViolation {
         testStatus(currentStatus, new TransactionStatus[] {expectedStatus}, packet);
     }
@@ -65,35 +98,137 @@ public class PtpIpSession implements PtpTransport.Session {
     @Override public PtpOperation.Response executeTransaction(PtpOperation.Request request) throws PtpIpExceptions.MalformedPacket, PtpIpExceptions.ProtocolViolation, PtpTransport.TransportIOError, PtpIpExceptions.OperationFailed {
         return executeTransaction(request, null);
     }
-    @Override public synchronized PtpOperation.Response executeTransaction(PtpOperation.Request request, DataLoadListener listener) throws PtpIpExceptions.MalformedPacket, PtpIpExceptions.ProtocolViolation, PtpTransport.TransportIOError, PtpIpExceptions.OperationFailed {
-        mLastTransactionId++;
-        return executeTransaction(request, mLastTransactionId, listener);
+    @Override public PtpOperation.Response executeTransaction(PtpOperation.Request request, DataLoadListener listener) throws PtpIpExceptions.MalformedPacket, PtpIpExceptions.ProtocolViolation, PtpTransport.TransportIOError, PtpIpExceptions.OperationFailed {
+        mTransactionLock.lock();
+        try {
+            mLastTransactionId++;
+            return executeTransaction(request, mLastTransactionId, listener);
+        }
+        finally {mTransactionLock.unlock();}
     }
     protected PtpOperation.Response executeNullTransaction(PtpOperation.Request request) throws PtpIpExceptions.MalformedPacket, PtpIpExceptions.ProtocolViolation, PtpTransport.TransportIOError, PtpIpExceptions.OperationFailed {
         return executeTransaction(request, 0, null);
     }
-    private synchronized PtpOperation.Response executeTransaction(PtpOperation.Request request, long transactionId, DataLoadListener listener) throws PtpIpExceptions.MalformedPacket, PtpIpExceptions.ProtocolViolation, PtpTransport.TransportIOError, PtpIpExceptions.OperationFailed {
-        // synchronized so that there's only one transaction executing at a time per session
+    private PtpOperation.Response executeTransaction(PtpOperation.Request request, long transactionId, DataLoadListener listener) throws PtpIpExceptions.MalformedPacket, PtpIpExceptions.ProtocolViolation, PtpTransport.TransportIOError, PtpIpExceptions.OperationFailed {
+        // locked so that there's only one transaction executing at a time per session
+        mTransactionLock.lock();
+        try {
+            // the command channel's reader counts the data coming in
+            request.getProgress().reset();
+            mPtpIpConnection.setCommandChannelProgress(request.getProgress());
+            request.setSession(this);
+            try {
+                if (!(request.getDataSink() instanceof PtpTransport.DirectDataSink) || !mPtpIpConnection.canReceiveDirectly()) return executeTransaction(request, transactionId, listener, null);
+
+                // direct sink --> let the command channel's listener move the payloads straight from the socket
+                DirectDataReceiver directReceiver = new DirectDataReceiver(mPtpIpConnection.getCommandChannelInput(), transactionId, (PtpTransport.DirectDataSink) request.getDataSink(), request.getProgress());
+                mPtpIpConnection.setCommandChannelReceiver(directReceiver);
+                try {return executeTransaction(request, transactionId, listener, directReceiver);}
+                finally {mPtpIpConnection.setCommandChannelReceiver(null);}
+            }
+            finally {
+                mCancellableRequest.set(null);
+                request.setSession(null);
+                if (request.isCancelled()) mCancelledTransactionId = transactionId;
+                mPtpIpConnection.setCommandChannelProgress(null);
+                mPtpIpConnection.clearCommandChannelSendDeadline();
+            }
+        }
+        finally {mTransactionLock.unlock();}
+    }
+
+    @Override public void cancelTransaction(PtpOperation.Request request) throws PtpTransport.TransportIOError {
+        try {sendCancel(request);}
+        catch (IOException e) {throw new PtpIpExceptions.IOError(e);}
+    }
+
+    // once the responder knows about the transaction, it can be cancelled (right away, if that's been asked for already)
+    private void setCancellable(PtpOperation.Request request) throws IOException {
+        mCancellableRequest.set(request);
+        if (request.isCancelled()) sendCancel(request);
+    }
+
+    private void sendCancel(PtpOperation.Request request) throws IOException {
+        if (!mCancellableRequest.compareAndSet(request, null)) return;
+        long transactionId = request.getTransactionId();
+        // the rest of the data is skipped straight off the socket where possible - otherwise the session drops it
+        if (mPtpIpConnection.canReceiveDirectly())
+            mPtpIpConnection.setCommandChannelReceiver(DirectDataReceiver.discarding(mPtpIpConnection.getCommandChannelInput(), transactionId, request.getProgress()));
+        mPtpIpConnection.sendEventChannelPacket(new PtpIpPacket.Event(PtpEvent.EVENTCODE_CancelTransaction, transactionId, new long[0]));
+        // a Cancel packet ends a data phase from its sender - only ours to send if we're the ones sending data
+        if ((request.getDataSource() != null) || request.hasData())
+            mPtpIpConnection.sendCommandChannelPacket(new PtpIpPacket.Cancel(transactionId));
+    }
+    // bulkTimeout > 0 --> every chunk that goes out pushes the send deadline back by that much
+    private void sendData(PtpOperation.Request request, PtpIpPacket.OperationRequest requestPacket, long transactionId, PtpTransport.DataSource source, DataLoadListener listener, long bulkTimeout) throws IOException {
+        // stream the source in chunks so it never needs to be in memory as a whole; last chunk goes with EndData.
+        // OperationRequest and StartData go out in the same write as the first chunk
+        PtpTransferProgress progress = request.getProgress();
+        long dataLength = source.getDataLength();
+        progress.setExpected(dataLength);
+        PtpIpPacket[] preceding = {requestPacket, new PtpIpPacket.StartData(transactionId, dataLength)};
+        long dataSent = 0;
+        while (dataLength - dataSent > DATA_OUT_CHUNK_SIZE) {
+            mPtpIpConnection.sendCommandChannelData(preceding, false, transactionId, source, DATA_OUT_CHUNK_SIZE);
+            if (dataSent == 0) setCancellable(request);
+            preceding = new PtpIpPacket[0];
+            dataSent += DATA_OUT_CHUNK_SIZE;
+            progress.add(DATA_OUT_CHUNK_SIZE);
+            if (bulkTimeout > 0) mPtpIpConnection.setCommandChannelSendDeadline(System.nanoTime() + bulkTimeout * 1000000);
+            publishProgress(request, listener);
+            if (request.isCancelled()) return;                          // the Cancel packet ends the data phase
+        }
+        mPtpIpConnection.sendCommandChannelData(preceding, true, transactionId, source, (int) (dataLength - dataSent));
+        if (dataSent == 0) setCancellable(request);
+        progress.add(dataLength - dataSent);
+        publishProgress(request, listener);
+    }
 
+    // the listener hears about the progress at most once per progress interval (and once on completion)
+    private void publishProgress(PtpOperation.Request request, DataLoadListener listener) {
+        PtpTransferProgress progress = request.getProgress();
+        if ((listener != null) && progress.sample(mPtpIpConnection.getProgressInterval()))
+            listener.onDataLoaded(request, progress.getTransferred(), progress.getExpected());
+    }
+
+    private PtpOperation.Response executeTransaction(PtpOperation.Request request, long transactionId, DataLoadListener listener, DirectDataReceiver directReceiver) throws PtpIpExceptions.MalformedPacket, PtpIpExceptions.ProtocolViolation, PtpTransport.TransportIOError, PtpIpExceptions.OperationFailed {
         if (!mIsOpened && (transactionId != 0))
             throw new PtpIpExceptions.ProtocolViolation("Cannot execute transactions without opening session first!");
 
         // -------------------------------------------------------------------------------------
         // Send OperationRequest (+ data if required)
 
-        LOG.info("PTP: Request out: ==> " + request.toString());
+        if (LOG.isLoggable(Level.FINE)) LOG.fine("PTP: Request out: ==> " + request.toString());
+        request.setTransactionId(transactionId);
+        if (request.isCancelled()) throw new PtpIpExceptions.OperationFailed("Transaction " + transactionId + " (cancelled before it was sent)", PtpOperation.RSPCODE_TransactionCancelled);
+
+        // the deadline runs from here - a responder that stops taking data can't hold up the send past it
+        boolean isBulk = isBulk(request);
+        long timeout = (request.getTimeout() != 0) ? Math.max(request.getTimeout(), 0) : (isBulk ? mBulkTimeout : mMetadataTimeout);
+        long deadline = System.nanoTime() + timeout * 1000000;
+        if (timeout > 0) mPtpIpConnection.setCommandChannelSendDeadline(deadline);
 
         PtpIpPacket.OperationRequest requestPacket = new PtpIpPacket.OperationRequest(request.hasData(), request.getOperationCode(), transactionId, request.getParameters());
         try {
-            mPtpIpConnection.sendCommandChannelPacket(requestPacket);
-            if (request.hasData()) {
+            if (request.getDataSource() != null) sendData(request, requestPacket, transactionId, request.getDataSource(), listener, isBulk ? timeout : 0);
+            else if (request.hasData()) {
                 DataBuffer dataBuffer = new DataBuffer();
                 request.getData().writeToBuffer(dataBuffer);
-                mPtpIpConnection.sendCommandChannelPacket(new PtpIpPacket.StartData(transactionId, dataBuffer.size()));
+                PtpIpPacket.StartData startPacket = new PtpIpPacket.StartData(transactionId, dataBuffer.size());
                 if (dataBuffer.size() > 0)
-                    mPtpIpConnection.sendCommandChannelPacket(new PtpIpPacket.Data(transactionId, dataBuffer));
-                mPtpIpConnection.sendCommandChannelPacket(new PtpIpPacket.EndData(transactionId, null));
+                    mPtpIpConnection.sendCommandChannelPackets(requestPacket, startPacket, new PtpIpPacket.Data(transactionId, dataBuffer), new PtpIpPacket.EndData(transactionId, null));
+                else mPtpIpConnection.sendCommandChannelPackets(requestPacket, startPacket, new PtpIpPacket.EndData(transactionId, null));
+                setCancellable(request);
             }
+            else {
+                mPtpIpConnection.sendCommandChannelPacket(requestPacket);
+                setCancellable(request);
+            }
+        }
+        catch (SocketTimeoutException e) {
+            // stuck halfway through a packet --> the stream can't be resynchronised
+            mPtpIpConnection.close();
+            throw new PtpIpExceptions.Timeout("Transaction " + transactionId + " timed out after " + timeout + " ms while sending - connection closed!");
         }
         catch (IOException e) {throw new PtpIpExceptions.IOError(e);}
         TransactionStatus status = TransactionStatus.REQUEST_SENT;
@@ -102,42 +237,76 @@ public class PtpIpSession implements PtpTransport.Session {
         // Wait for and read response
 
         long dataRemaining = 0;
-        DataBuffer dataIn = null;
+        long dataLoaded = 0;
+        CompositeBuffer dataIn = null;
+        PtpTransport.DataSink dataSink = request.getDataSink();
+        IOException sinkError = null;
         PtpOperation.Response response = PtpOperation.createResponse(request);
+        long progressInterval = mPtpIpConnection.getProgressInterval();
+        boolean isDataDropped = false;
+
+        if (isBulk) deadline = System.nanoTime() + timeout * 1000000;   // sending it all was progress
+        long transferred = 0;                                           // at the last deadline, for bulk transfers
+        boolean isTimedOut = false;
 
         while (status != TransactionStatus.RESPONSE_RECEIVED) {
-            // takeBlocking
-            PtpIpPacket packet = null;
-            while (packet == null) {try {packet = mTransactionPacketInQueue.take();} catch (InterruptedException e) {}}
+            // wake up for the deadline, and with a listener every so often to sample the progress counted by the reader
+            long wait = (timeout > 0) ? Math.max(deadline - System.nanoTime(), 0) : Long.MAX_VALUE;
+            if (listener != null) wait = Math.min(wait, progressInterval * 1000000);
+            PtpIpPacket packet = (wait == Long.MAX_VALUE) ? mTransactionPacketInQueue.take() : mTransactionPacketInQueue.poll(wait);
+            if (packet == null) {
+                if (status == TransactionStatus.DATA_STARTED) publishProgress(request, listener);
+                if ((timeout == 0) || (System.nanoTime() - deadline < 0)) continue;
+
+                // bulk transfers only time out once they stall (the reader may still be busy with one long packet)
+                if (isBulk && !isTimedOut && (request.getProgress().getTransferred() != transferred)) {
+                    transferred = request.getProgress().getTransferred();
+                    deadline = System.nanoTime() + timeout * 1000000;
+                }
+                // deadline passed --> cancel and give the responder a moment to confirm
+                else if (!isTimedOut) {
+                    LOG.warning("PTPIP: Transaction " + transactionId + " timed out after " + timeout + " ms - cancelling");
+                    isTimedOut = true;
+                    deadline = System.nanoTime() + CANCEL_TIMEOUT * 1000000;
+                    mPtpIpConnection.setCommandChannelSendDeadline(deadline);
+                    request.cancel();
+                }
+                // not even that --> the responder is hung, the connection is beyond saving
+                else {
+                    mPtpIpConnection.close();
+                    throw new PtpIpExceptions.Timeout("Transaction " + transactionId + " timed out, responder didn't confirm the cancel - connection closed!");
+                }
+                continue;
+            }
+            if (isBulk && !isTimedOut) deadline = System.nanoTime() + timeout * 1000000; // any packet is progress
 
             // if Error --> throw Exception
             PtpIpExceptions.testError(packet);
 
-            // if LoadStatus --> report onwards if we're receiving data and have a listener
-            if (packet instanceof PtpIpPacket.LoadStatus) {
-                PtpIpPacket subPacket = ((PtpIpPacket.LoadStatus) packet).mLoadedPacket;
-                if ((subPacket instanceof PtpIpPacket.Data) || (subPacket instanceof PtpIpPacket.EndData)) {
-                    testStatus(status, new TransactionStatus[]{TransactionStatus.DATA_STARTED, TransactionStatus.DATA_ENDED}, packet);
-                    if (listener != null) listener.onDataLoaded(request, dataIn.size() + ((PtpIpPacket.LoadStatus) packet).mLoadedBytes - 8, dataIn.size() + dataRemaining);
-                }
-            }
+            // cancelled by us --> whatever data has been collected goes, the rest is drained until the response comes
+            boolean isCancelled = request.isCancelled();
+            if (isCancelled && (status != TransactionStatus.REQUEST_SENT)) isDataDropped = true;
+            if (isCancelled && (dataIn != null)) {dataIn.release(); dataIn = null;}
 
             // if Event (must be cancel) --> abort if right transaction ID
-            else if (packet instanceof PtpIpPacket.Event) {
+            if (packet instanceof PtpIpPacket.Event) {
                 // this cannot happen, since we only put cancel-packets into the queue - but we'll double check anyway
                 if (((PtpIpPacket.Event) packet).mEventCode != PtpEvent.EVENTCODE_CancelTransaction)
                     throw new PtpIpExceptions.ProtocolViolation("Non-cancel event packet in transaction queue!");
                 if (((PtpIpPacket.Event) packet).mTransactionId > transactionId)           // this shouldn't happen but let's make sure
                     throw new PtpIpExceptions.ProtocolViolation("Received cancel-packet for future transaction!");
                 if (((PtpIpPacket.Event) packet).mTransactionId < transactionId) continue; // must refer to an old transaction that finished - ignore
+                if (isCancelled) continue;                                                  // our own cancel - the response is still to come
 
                 throw new PtpIpExceptions.OperationFailed("Device cancelled transaction!", 0);
             }
 
             // if TransactionPacket --> check transactionId and process packet-types
             else if (packet instanceof PtpIpPacket.TransactionPacket) {
-                if (((PtpIpPacket.TransactionPacket) packet).mTransactionId != transactionId)
+                if (((PtpIpPacket.TransactionPacket) packet).mTransactionId != transactionId) {
+                    if (((PtpIpPacket.TransactionPacket) packet).mTransactionId == mCancelledTransactionId) {packet.release(); continue;}
                     throw new PtpIpExceptions.ProtocolViolation("Received wrong transaction-Id. Expected " + transactionId + ", received " + ((PtpIpPacket.TransactionPacket) packet).mTransactionId);
+                }
 
                 // if StartData --> check state and move to data receiving
                 if (packet instanceof PtpIpPacket.StartData) {
@@ -145,35 +314,58 @@ public class PtpIpSession implements PtpTransport.Session {
                     if (((PtpIpPacket.StartData) packet).mDataLength == 0xFFFFFFFF)
                         throw new PtpIpExceptions.ProtocolViolation("Unknown data length (0xFFFFFFFF) currently not supported!");
                     dataRemaining = ((PtpIpPacket.StartData) packet).mDataLength;
-                    dataIn = new DataBuffer((int) dataRemaining);
-                    //TODO...: this can lead to OOM-situations
+                    request.getProgress().setExpected(dataRemaining);
+                    if (dataSink == null) dataIn = new CompositeBuffer();
+                    //TODO...: this can lead to OOM-situations (unless streaming into a sink)
+                    else if (directReceiver == null) sinkError = startSink(dataSink, dataRemaining);
                     status = TransactionStatus.DATA_STARTED;
                 }
 
                 // if Data --> check state and receive
                 else if (packet instanceof PtpIpPacket.Data) {
                     testStatus(status, TransactionStatus.DATA_STARTED, packet);
-                    byte[] payload = (((PtpIpPacket.Data) packet).mDataPayload);
-                    dataRemaining -= payload.length;
+                    int payloadLength = ((PtpIpPacket.Data) packet).getPayloadLength();
+                    dataRemaining -= payloadLength;
+                    dataLoaded += payloadLength;
                     if (dataRemaining < 0) throw new PtpIpExceptions.ProtocolViolation("Received Data but longer than announced!");
-                    dataIn.writeObject(payload);
-                    mTransactionPacketInQueue.offerFirst(new PtpIpPacket.LoadStatus(packet, 0));
+                    if (((PtpIpPacket.Data) packet).isReceivedDirectly()) {}    // already in the sink (or skipped)
+                    else if (isCancelled) packet.release();
+                    else if (dataSink == null) dataIn.addComponent(((PtpIpPacket.Data) packet).mDataPayload); // dataIn now owns the receive buffer
+                    else {
+                        if (sinkError == null) sinkError = writeSink(dataSink, ((PtpIpPacket.Data) packet).mDataPayload);
+                        packet.release();
+                    }
+                    publishProgress(request, listener);
                 }
 
                 // if EndData --> check state and move to response expected
                 else if (packet instanceof PtpIpPacket.EndData) {
                     testStatus(status, TransactionStatus.DATA_STARTED, packet);
-                    byte[] payload = (((PtpIpPacket.EndData) packet).mDataPayload);
-                    dataRemaining -= payload.length;
-                    if (dataRemaining != 0) throw new PtpIpExceptions.ProtocolViolation("Received EndData but was expecting " + dataRemaining + " more; (EndData payload: " + payload.length);
-                    dataIn.writeObject(payload);
+                    int payloadLength = ((PtpIpPacket.EndData) packet).getPayloadLength();
+                    dataRemaining -= payloadLength;
+                    dataLoaded += payloadLength;
+                    if ((dataRemaining != 0) && !isCancelled) throw new PtpIpExceptions.ProtocolViolation("Received EndData but was expecting " + dataRemaining + " more; (EndData payload: " + payloadLength);
+                    if (isCancelled) packet.release();                          // the responder may end the data phase early
+                    else if ((dataSink == null) && (payloadLength != 0)) dataIn.addComponent(((PtpIpPacket.EndData) packet).mDataPayload);
+                    else {
+                        if ((sinkError == null) && (directReceiver != null)) sinkError = directReceiver.getSinkError();
+                        if ((sinkError == null) && (payloadLength != 0) && !((PtpIpPacket.EndData) packet).isReceivedDirectly())
+                            sinkError = writeSink(dataSink, ((PtpIpPacket.EndData) packet).mDataPayload);
+                        if ((sinkError == null) && (dataSink != null)) sinkError = endSink(dataSink);
+                        packet.release();
+                    }
                     status = TransactionStatus.DATA_ENDED;
-                    if (payload.length != 0) mTransactionPacketInQueue.offerFirst(new PtpIpPacket.LoadStatus(packet, 0));
+                    publishProgress(request, listener);
                 }
 
-                // if OperationResponse --> check state and complete transaction
+                // if Cancel --> the responder has ended the data phase, response follows
+                else if (packet instanceof PtpIpPacket.Cancel) {
+                    if (status == TransactionStatus.DATA_STARTED) status = TransactionStatus.DATA_ENDED;
+                }
+
+                // if OperationResponse --> check state and complete transaction (after a cancel, it may cut the data phase short)
                 else if (packet instanceof PtpIpPacket.OperationResponse) {
-                    testStatus(status, new TransactionStatus[] {TransactionStatus.REQUEST_SENT, TransactionStatus.DATA_ENDED}, packet);
+                    if (!isCancelled) testStatus(status, new TransactionStatus[] {TransactionStatus.REQUEST_SENT, TransactionStatus.DATA_ENDED}, packet);
                     PtpIpPacket.OperationResponse ptpIpResponse = (PtpIpPacket.OperationResponse) packet;
                     response.setResponseCode(ptpIpResponse.mResponseCode);
                     response.setParameters(ptpIpResponse.mParameters);
@@ -189,16 +381,64 @@ public class PtpIpSession implements PtpTransport.Session {
             }
         }
 
-        LOG.info("PTP: Response in: <== " + response.toString());
+        if (LOG.isLoggable(Level.FINE)) LOG.fine("PTP: Response in: <== " + response.toString());
+
+        // timed out, but the responder confirmed the cancel --> the session can go on
+        if (isTimedOut) throw new PtpIpExceptions.Timeout("Transaction " + transactionId + " timed out after " + timeout + " ms!");
+
+        // cancel came too late to stop the responder, but the data is gone nonetheless
+        if (isDataDropped && response.isSuccess())
+            throw new PtpIpExceptions.OperationFailed("Transaction " + transactionId + " (cancelled)", PtpOperation.RSPCODE_TransactionCancelled);
+
+        // sink failed on us - transaction has been completed regardless, so the session is still usable
+        if (sinkError != null) throw new PtpIpExceptions.IOError("Could not write received data to sink!", sinkError);
 
         return response;
     }
 
+    // -----------------------------------------------------------------------------------------
+    // Data sink helpers - errors are returned rather than thrown so that we can keep draining the
+    // data phase and leave the session in a consistent state
+
+    private IOException startSink(PtpTransport.DataSink sink, long dataLength) {
+        try {sink.onDataStart(dataLength); return null;}
+        catch (IOException e) {return e;}
+        catch (RuntimeException e) {return new IOException(e);}
+    }
+
+    private IOException writeSink(PtpTransport.DataSink sink, DataBuffer payload) {
+        try {
+            ByteBuffer data = payload.asByteBuffer();
+            int stalls = 0;
+            while (data.hasRemaining()) {
+                int remaining = data.remaining();
+                sink.write(data);
+                if (data.remaining() < remaining) {stalls = 0; continue;}
+                if (++stalls > SINK_STALL_LIMIT) return new IOException("Data sink made no progress for " + SINK_STALL_LIMIT + " writes!");
+                Thread.sleep(Math.min(stalls, 10));
+            }
+            return null;
+        }
+        catch (InterruptedException e) {Thread.currentThread().interrupt(); return new IOException("Interrupted while writing to data sink!", e);}
+        catch (IOException e) {return e;}
+        catch (RuntimeException e) {return new IOException(e);}
+    }
+
+    private IOException endSink(PtpTransport.DataSink sink) {
+        try {sink.onDataEnd(); return null;}
+        catch (IOException e) {return e;}
+        catch (RuntimeException e) {return new IOException(e);}
+    }
+
     @Override public void close() throws PtpTransport.TransportDataError, PtpTransport.TransportIOError, PtpTransport.TransportOperationFailed, PtpExceptions.PtpProtocolViolation {
         if (!isOpened()) return;
-        PtpOperation.Response response = executeTransaction(PtpOperation.createRequest(PtpOperation.OPSCODE_CloseSession));
-        response.validate();
-        if (!response.isSuccess()) throw new PtpIpExceptions.OperationFailed("CloseSession", response.getResponseCode());
-        mIsOpened = false;
+        try {
+            PtpOperation.Response response = executeTransaction(PtpOperation.createRequest(PtpOperation.OPSCODE_CloseSession));
+            response.validate();
+            if (!response.isSuccess()) throw new PtpIpExceptions.OperationFailed("CloseSession", response.getResponseCode());
+            mIsOpened = false;
+            mPtpIpConnection.onSessionClosed(this);
+        }
+        finally {if (mClosesConnection) mPtpIpConnection.close();}
     }
 }
@@ -0,0 +1,87 @@
+/*  Copyright (C) 2017 Fimagena (fimagena at gmail dot com)
+
+    This file is part of libptp.
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; see the file COPYING.  If not, 
+    see <http://www.gnu.org/licenses/>.
+*/
+
+package com.fimagena.libptp.ptpip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+
+class ReadAheadInput extends InputStream implements ReadableByteChannel {
+
+    // Receive buffer in front of the socket channel: every read pulls in as much as the socket has (up to
+    // the buffer's capacity), so several small packets get parsed per syscall. Reads at least as large as
+    // the buffer bypass it once it's drained, as do channel reads into direct buffers - bulk payloads
+    // therefore aren't copied twice. Both views share the buffer, so already buffered bytes are never skipped.
+
+    private final ReadableByteChannel mChannel;
+    private final ByteBuffer mBuffer;                                   // read mode: [position, limit) is unread
+
+    ReadAheadInput(ReadableByteChannel channel, int capacity) {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocate(capacity);
+        mBuffer.flip();
+    }
+
+    int buffered() {return mBuffer.remaining();}
+
+    private int fillBuffer() throws IOException {
+        mBuffer.clear();
+        int read;
+        try {read = mChannel.read(mBuffer);}
+        finally {mBuffer.flip();}
+        return read;
+    }
+
+    @Override public int read() throws IOException {
+        if (!mBuffer.hasRemaining() && (fillBuffer() <= 0)) return -1;
+        return mBuffer.get() & 0xff;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!mBuffer.hasRemaining()) {
+            if (len >= mBuffer.capacity()) return mChannel.read(ByteBuffer.wrap(b, off, len));
+            if (fillBuffer() <= 0) return -1;
+        }
+        int n = Math.min(len, mBuffer.remaining());
+        mBuffer.get(b, off, n);
+        return n;
+    }
+
+    @Override public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) return 0;
+        if (!mBuffer.hasRemaining()) {
+            if (dst.isDirect() || (dst.remaining() >= mBuffer.capacity())) return mChannel.read(dst);
+            if (fillBuffer() <= 0) return -1;
+        }
+        int n = Math.min(dst.remaining(), mBuffer.remaining());
+        int limit = mBuffer.limit();
+        mBuffer.limit(mBuffer.position() + n);
+        dst.put(mBuffer);
+        mBuffer.limit(limit);
+        return n;
+    }
+
+    @Override public int available() {return mBuffer.remaining();}
+    @Override public boolean isOpen() {return mChannel.isOpen();}
+    @Override public void close() throws IOException {mChannel.close();}
+}
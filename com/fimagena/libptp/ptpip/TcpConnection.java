@@ -19,61 +19,166 @@
 
 package com.fimagena.libptp.ptpip;
 
+import com.fimagena.libptp.PtpTransferProgress;
+import com.fimagena.libptp.PtpTransport;
+
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 public class TcpConnection {
     private Socket mSocket;
     private OutputStream mOut;
-    private InputStream mIn;
+    private ReadAheadInput mIn;
     private long mLastActivityTimestamp;
     private boolean mIsClosed = false;
 
     private final static Logger LOG = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 
-    private BlockingQueue<PtpIpPacket> mPacketOutQueue;
+    // receive buffers are recycled once the packets have been consumed (see PtpIpPacket.release())
+    private final BufferPool mBufferPool = new BufferPool();
+
+    private volatile PtpIpPacket.PayloadReceiver mPayloadReceiver;
+    private volatile PtpTransferProgress mReceiveProgress;              // counts the data-phase bytes as they're read
+    private volatile boolean mHasSendDeadline = false;
+    private volatile long mSendDeadline;                                // System.nanoTime() a stalled write gives up at
+    private volatile boolean mIsWriting = false;                        // a send is under way (see checkSendDeadline)
+    private volatile boolean mSendTimedOut = false;
+    private volatile PacketTrace mPacketTrace;
+
+    // a lock rather than synchronized - blocking socket writes must not pin virtual threads to their carrier
+    private final ReentrantLock mSendLock = new ReentrantLock();
+    private ThreadFactory mThreadFactory = PtpTransport.DEFAULT_THREAD_FACTORY;
+
+    private final static int SEND_BUFFER_SIZE = 64 * 1024;
+    private final static int MIN_READ_AHEAD_SIZE = 16 * 1024;
+    private final static int MAX_READ_AHEAD_SIZE = 512 * 1024;
+    private int mSoReceiveBufferSize = 0;                               // SO_RCVBUF/SO_SNDBUF, 0 --> system default
+    private int mSoSendBufferSize = 0;
+    private int mConnectTimeout = 0;                                    // ms, 0 --> none
+    private final static int PACKET_BUFFER_SIZE = 512;
+    private ByteBuffer mPacketBuffer = ByteBuffer.allocateDirect(PACKET_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mSendHeader = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer mSendBuffer;
 
-    private void putBlocking(PtpIpPacket packet) {
-        while (true) {try {mPacketOutQueue.put(packet); return;} catch (InterruptedException e) {}}
+    // gathering-write state, reused under the send lock: mSegments[0, mSegmentCount) goes out next, the
+    // slices are views on mPacketBuffer (recreated when it grows)
+    private final static PtpIpPacket[] NO_PACKETS = new PtpIpPacket[0];
+    private ByteBuffer[] mSegments = new ByteBuffer[8];
+    private int mSegmentCount;
+    private ByteBuffer[] mPacketSlices = new ByteBuffer[4];
+    private int mPacketSliceCount;
+    private ByteBuffer[] mDataSegments = new ByteBuffer[4];
+    private volatile Exception mSendFailure;                            // broke the outgoing stream, reported by the listener
+
+    // the listener is usually already blocked in readPacket when a receiver gets registered - so look it up per packet
+    private final PtpIpPacket.PayloadReceiver mPayloadReceiverDelegate = new PtpIpPacket.PayloadReceiver() {
+        @Override public void onStartData(long transactionId, long dataLength) {
+            PtpIpPacket.PayloadReceiver receiver = mPayloadReceiver;
+            if (receiver != null) receiver.onStartData(transactionId, dataLength);
+        }
+        @Override public boolean receivePayload(long transactionId, int length) throws IOException {
+            PtpIpPacket.PayloadReceiver receiver = mPayloadReceiver;
+            return (receiver != null) && receiver.receivePayload(transactionId, length);
+        }
+    };
+
+    // received packets are handed to the dispatcher on the reading thread (the listener's, or the selector
+    // loop's in selector mode) rather than queued for another thread; on a loop, a dispatcher that can't take
+    // a packet right away refuses it and gets it offered again later
+    interface PacketDispatcher {
+        boolean onPacket(PtpIpPacket packet);
+        void onTick();
     }
 
+    private PtpIpSelector.Loop mSelectorLoop;
+    private final PacketDispatcher mDispatcher;
+    private Selector mWriteSelector;                                    // to wait for the non-blocking channel to drain
+    private ByteBuffer mReadBuffer;                                     // unparsed bytes in [0, position)
+    private PtpIpPacket mPendingPacket;
+    private DataBuffer mPendingPayload;
+    private int mPendingRemaining;
+    private PtpIpPacket mStalledPacket;                                 // refused by the dispatcher, reading is suspended
+    private final Queue<PtpIpPacket> mControlPackets = new ConcurrentLinkedQueue<>(); // probes queued by the loop
+    private ByteBuffer mControlOut;                                     // the one being written, under the send lock
 
-    private class TcpListener extends Thread {
+    private boolean putBlocking(PtpIpPacket packet) {
+        return mDispatcher.onPacket(packet);
+    }
 
-        private PtpIpPacket.ReadingListener mReadingListener = new PtpIpPacket.ReadingListener() {
-            @Override public void onLoaded(PtpIpPacket packet, int loadedBytes) {
-                putBlocking(new PtpIpPacket.LoadStatus(packet, loadedBytes));
-            }
+    private boolean onPacketReceived(PtpIpPacket packet) {
+        packet.setSourceConnection(TcpConnection.this);
+        mLastActivityTimestamp = System.currentTimeMillis();
+        PacketTrace trace = mPacketTrace;
+        if (trace != null) trace.record(PacketTrace.DIRECTION_IN, packet, packet.mLength);
+        if (LOG.isLoggable(Level.FINE)) LOG.fine("PTPIP: Packet in  <== " + packet.toString());
+        return putBlocking(packet);
+    }
+
+    void onReceiveError(Exception e) {
+        LOG.severe("PTPIP: Error when receiving packet - closing connection! (" + e.getMessage() + ")");
+        try {mIn .close();} catch (Exception ex) {}
+        try {mOut.close();} catch (Exception ex) {}
+
+        Exception cause = (mSendFailure != null) ? mSendFailure : e;
+        // the session expects an IOException or a MalformedPacket - anything else is a bug in packet handling
+        if (!(cause instanceof IOException) && !(cause instanceof PtpIpExceptions.MalformedPacket))
+            cause = new IOException("Packet handling failed! (" + cause + ")", cause);
+        PtpIpPacket packet = new PtpIpPacket.Error(cause);
+        packet.setSourceConnection(TcpConnection.this);
+        putBlocking(packet);
+    }
+
+
+    private void onDataReceived(long bytes) {
+        PtpTransferProgress progress = mReceiveProgress;
+        if (progress != null) progress.add(bytes);
+    }
+
+    private class TcpListener implements Runnable {
+
+        private DataBuffer.LoadingListener mDataListener = new DataBuffer.LoadingListener() {
+            @Override public void onLoaded(int loadedBytes) {onDataReceived(loadedBytes);}
         };
 
         public void run() {
             PtpIpPacket packet;
             while (true) {
                 try {
-                    packet = PtpIpPacket.readPacket(mIn, mReadingListener);
-                    packet.setSourceConnection(TcpConnection.this);
-                    mLastActivityTimestamp = System.currentTimeMillis();
-                    LOG.info("PTPIP: Packet in  <== " + packet.toString());
-                    putBlocking(packet);
+                    packet = PtpIpPacket.readPacket(mIn, mBufferPool, mDataListener, mPayloadReceiverDelegate);
+                    onPacketReceived(packet);
                 }
                 catch (IOException | PtpIpExceptions.MalformedPacket e) {
                     // did we trigger this ourselves? --> shutdown listener and don't notify
                     if ((e instanceof IOException) && mIsClosed) return;
 
                     // something happened --> shutdown send error-packet upwards
-                    LOG.severe("PTPIP: Error when receiving packet - closing connection! (" + e.getMessage() + ")");
-                    try {mIn .close();} catch (Exception ex) {}
-                    try {mOut.close();} catch (Exception ex) {}
-
-                    packet = new PtpIpPacket.Error(e);
-                    packet.setSourceConnection(TcpConnection.this);
-                    putBlocking(packet);
+                    onReceiveError(e);
+                    return;
+                }
+                // the dispatcher runs right here on the reading thread - a bug in it must not leave transactions hanging
+                catch (RuntimeException e) {
+                    LOG.severe("PTPIP: Unexpected error on reading thread - closing connection! (" + e + ")");
+                    onReceiveError(e);
                     return;
                 }
             }
@@ -81,42 +186,359 @@ public class TcpConnection {
     }
 
 
-    public TcpConnection(BlockingQueue<PtpIpPacket> receivedPacketQueue) {
-        mPacketOutQueue = receivedPacketQueue;
+    // called on the selector's loop thread when the channel has data
+    void onReadable() {
+        if (mStalledPacket != null) return;
+        try {
+            if (mSocket.getChannel().read(mReadBuffer) < 0) throw new EOFException("Connection closed by responder!");
+            mReadBuffer.flip();
+            try {parseReadBuffer();}
+            finally {mReadBuffer.compact();}
+            if (mStalledPacket != null) mSelectorLoop.suspendReading(this);
+        }
+        catch (IOException | PtpIpExceptions.MalformedPacket e) {
+            if ((e instanceof IOException) && mIsClosed) return;
+            onReceiveError(e);
+        }
+    }
+
+    // ... and periodically while reading is suspended: true once the refused packet and whatever was
+    // buffered behind it have been handed over
+    boolean retryStalledPacket() {
+        if (!mDispatcher.onPacket(mStalledPacket)) return false;
+        mStalledPacket = null;
+        try {
+            mReadBuffer.flip();
+            try {parseReadBuffer();}
+            finally {mReadBuffer.compact();}
+        }
+        catch (PtpIpExceptions.MalformedPacket e) {onReceiveError(e); return true;}
+        return mStalledPacket == null;
+    }
+
+    // ... when the channel can take more: true once no control packet is left to send. A sender holding
+    // the lock flushes them itself (and asks the loop back for any queued after it's done)
+    boolean onWritable() {
+        if (!mSendLock.tryLock()) return true;
+        try {return flushControlPackets(false);}
+        catch (IOException e) {
+            if (!mIsClosed) onReceiveError(e);
+            return true;
+        }
+        finally {mSendLock.unlock();}
+    }
+
+    // probes and their responses - on a selector loop they are queued and written once the channel is writable
+    void sendControlPacket(PtpIpPacket packet) throws IOException {
+        if (mSelectorLoop == null) {sendPacket(packet); return;}
+        mControlPackets.add(packet);
+        mLastActivityTimestamp = System.currentTimeMillis();           // as good as sent, for the idle checks
+        mSelectorLoop.requestWrite(this);
+    }
+
+    private boolean flushControlPackets(boolean blocking) throws IOException {
+        SocketChannel channel = mSocket.getChannel();
+        while (true) {
+            if ((mControlOut == null) || !mControlOut.hasRemaining()) {
+                PtpIpPacket packet = mControlPackets.poll();
+                if (packet == null) return true;
+                if (LOG.isLoggable(Level.FINE)) LOG.fine("PTPIP: Packet out ==> " + packet.toString());
+                PacketTrace trace = mPacketTrace;
+                if (trace != null) trace.record(PacketTrace.DIRECTION_OUT, packet, packet.getSerializedLength());
+                mControlOut = ByteBuffer.wrap(packet.serializePacket());
+            }
+            if (channel.write(mControlOut) == 0) {
+                if (!blocking) return false;
+                awaitWritable(channel);
+            }
+            mLastActivityTimestamp = System.currentTimeMillis();
+        }
+    }
+
+    private void lockSend() {
+        mSendLock.lock();
+        mIsWriting = true;
+    }
+    private void unlockSend() {
+        mIsWriting = false;
+        mSendLock.unlock();
+        if ((mSelectorLoop != null) && !mControlPackets.isEmpty()) mSelectorLoop.requestWrite(this);
+    }
+
+    void onTick() {mDispatcher.onTick();}
+
+    // packets may end anywhere in the buffer - an incomplete one is kept pending until the next read
+    private void parseReadBuffer() throws PtpIpExceptions.MalformedPacket {
+        while (true) {
+            if (mPendingPacket == null) {
+                if (mReadBuffer.remaining() < 8) return;
+                long packetLength = mReadBuffer.getInt() & 0xffffffffL;
+                long packetType = mReadBuffer.getInt() & 0xffffffffL;
+                mPendingPacket = PtpIpPacket.createPacket(packetLength, packetType);
+                mPendingRemaining = (int) packetLength - 8;
+                mPendingPayload = mBufferPool.acquire(mPendingRemaining);
+            }
+
+            int length = Math.min(mPendingRemaining, mReadBuffer.remaining());
+            if (length > 0) {
+                long loaded = mPendingPayload.size();
+                int limit = mReadBuffer.limit();
+                mReadBuffer.limit(mReadBuffer.position() + length);
+                mPendingPayload.writeObject(mReadBuffer);
+                mReadBuffer.limit(limit);
+                mPendingRemaining -= length;
+                // data bytes only, the payload starts with the transaction id
+                if (mPendingPacket instanceof PtpIpPacket.DataPacket) onDataReceived(Math.max(loaded + length - 4, 0) - Math.max(loaded - 4, 0));
+            }
+            if (mPendingRemaining > 0) return;
+
+            PtpIpPacket packet = mPendingPacket;
+            DataBuffer payload = mPendingPayload;
+            mPendingPacket = null;
+            mPendingPayload = null;
+            packet.readPayload(payload);
+            if (!packet.retainsPayloadBuffer()) payload.release();
+            if (!onPacketReceived(packet)) {mStalledPacket = packet; return;}
+        }
+    }
+
+
+    TcpConnection(PacketDispatcher dispatcher) {
+        mDispatcher = dispatcher;
     }
 
     public void connect(InetSocketAddress server) throws IOException {
         try {
-            mSocket = new Socket();
+            mSocket = SocketChannel.open().socket(); // channel-backed, so payloads can be read straight off the channel
             mSocket.setSoTimeout(0);
             mSocket.setKeepAlive(true);
             mSocket.setTcpNoDelay(true);
-            mSocket.connect(server);
+            if (mSoReceiveBufferSize > 0) mSocket.setReceiveBufferSize(mSoReceiveBufferSize); // before connect, for the window scale
+            if (mSoSendBufferSize > 0) mSocket.setSendBufferSize(mSoSendBufferSize);
+            mSocket.connect(server, mConnectTimeout);
             mOut = mSocket.getOutputStream();
-            mIn = mSocket.getInputStream();
+            // read ahead as much as the receive window might hold, so that queued packets are parsed without further syscalls
+            int readAheadSize = Math.min(Math.max(mSocket.getReceiveBufferSize(), MIN_READ_AHEAD_SIZE), MAX_READ_AHEAD_SIZE);
+            if (mSelectorLoop != null) {
+                mReadBuffer = ByteBuffer.allocate(readAheadSize).order(ByteOrder.LITTLE_ENDIAN);
+                mSocket.getChannel().configureBlocking(false);
+            }
+            else mIn = new ReadAheadInput(mSocket.getChannel(), readAheadSize);
             mLastActivityTimestamp = System.currentTimeMillis();
         } catch (IOException e) {
             LOG.severe("Error on establishing TCP connection - closing! (" + e.getMessage() + ")");
             close();
             throw e;
         }
-        new TcpListener().start();
+        if (mSelectorLoop != null) mSelectorLoop.register(this);
+        else mThreadFactory.newThread(new TcpListener()).start();
     }
 
-    public void sendPacket(PtpIpPacket packet) throws IOException {
-        LOG.info("PTPIP: Packet out ==> " + packet.toString());
+    public void sendPacket(PtpIpPacket packet) throws IOException {sendPackets(packet);}
+
+    // the packets of one transaction phase (e.g. OperationRequest, StartData, Data, EndData) in one gathering write
+    public void sendPackets(PtpIpPacket... packets) throws IOException {
+        lockSend();
+        try {
+            if ((mSocket == null) || (mSocket.isClosed()) || (!mSocket.isConnected())) throw new IOException();
+            encodePackets(packets);
+            writeSegments();
+            mLastActivityTimestamp = System.currentTimeMillis();
+        }
+        catch (IOException e) {throw onSendError(e);}
+        finally {unlockSend();}
+    }
+
+    // Data/EndData packet whose payload is taken from the source as it's being sent (straight into the
+    // socket channel for direct sources, otherwise through a reusable send buffer)
+    public void sendDataPacket(boolean isEndData, long transactionId, PtpTransport.DataSource source, int length) throws IOException {
+        sendDataPacket(NO_PACKETS, isEndData, transactionId, source, length);
+    }
+    // ... with the packets preceding it in the same phase coalesced into its first write
+    public void sendDataPacket(PtpIpPacket[] preceding, boolean isEndData, long transactionId, PtpTransport.DataSource source, int length) throws IOException {
+        lockSend();
+        try {sendDataPacketLocked(preceding, isEndData, transactionId, source, length);}
+        catch (IOException e) {throw onSendError(e);}
+        finally {unlockSend();}
+    }
+    private void sendDataPacketLocked(PtpIpPacket[] preceding, boolean isEndData, long transactionId, PtpTransport.DataSource source, int length) throws IOException {
         if ((mSocket == null) || (mSocket.isClosed()) || (!mSocket.isConnected())) throw new IOException();
-        mOut.write(packet.serializePacket());
-        mOut.flush();
+        encodePackets(preceding);
+
+        if (LOG.isLoggable(Level.FINE)) LOG.fine("PTPIP: Packet out ==> [" + (isEndData ? "EndData" : "Data") + "]:[TransactionId: " + transactionId + "]:[PayloadLength: " + length + "]");
+        PacketTrace trace = mPacketTrace;
+        if (trace != null) trace.record(PacketTrace.DIRECTION_OUT, isEndData ? PtpIpPacket.PKT_EndData : PtpIpPacket.PKT_Data, 12 + length, 0, transactionId);
+
+        mSendHeader.clear();
+        mSendHeader.putInt(12 + length).putInt(isEndData ? PtpIpPacket.PKT_EndData : PtpIpPacket.PKT_Data).putInt((int) transactionId).flip();
+        addSegment(mSendHeader);
+
+        if ((source instanceof PtpTransport.DirectDataSource) && (mSelectorLoop == null)) {
+            writeSegments();
+            WritableByteChannel channel = mSocket.getChannel();
+            long remaining = length;
+            try {
+                while (remaining > 0) {
+                    long sent = ((PtpTransport.DirectDataSource) source).transferTo(channel, remaining);
+                    if (sent <= 0) throw new IOException("Data source exhausted before end of packet!");
+                    remaining -= sent;
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                // the header promised more than went out, the stream can't be resynchronised - drop the
+                // connection (without flagging it as closed by us) and let the listener report the error
+                LOG.severe("PTPIP: Error when sending data packet - closing connection! (" + e.getMessage() + ")");
+                mSendFailure = e;
+                try {mIn .close();} catch (Exception ex) {}
+                try {mOut.close();} catch (Exception ex) {}
+                throw e;
+            }
+        }
+        else {
+            // read the chunk completely before sending anything so that a failing source doesn't leave half a packet
+            if ((mSendBuffer == null) || (mSendBuffer.capacity() < length)) mSendBuffer = ByteBuffer.allocateDirect(Math.max(length, SEND_BUFFER_SIZE));
+            mSendBuffer.clear().limit(length);
+            while (mSendBuffer.hasRemaining())
+                if (source.read(mSendBuffer) < 0) throw new IOException("Data source exhausted before end of packet!");
+            mSendBuffer.flip();
+            addSegment(mSendBuffer);
+            writeSegments();
+        }
         mLastActivityTimestamp = System.currentTimeMillis();
     }
 
+    // header and fields of all packets go into the reusable packet buffer (one slice per run between
+    // data segments), Data payloads are gathered from where they are
+    private void encodePackets(PtpIpPacket[] packets) {
+        mSegmentCount = 0;
+        mPacketSliceCount = 0;
+        if (packets.length == 0) return;
+
+        if (mDataSegments.length < packets.length) mDataSegments = new ByteBuffer[packets.length];
+        int encodedLength = 0;
+        for (int i = 0; i < packets.length; i++) {
+            if (LOG.isLoggable(Level.FINE)) LOG.fine("PTPIP: Packet out ==> " + packets[i].toString());
+            int packetLength = packets[i].getSerializedLength();
+            PacketTrace trace = mPacketTrace;
+            if (trace != null) trace.record(PacketTrace.DIRECTION_OUT, packets[i], packetLength);
+            mDataSegments[i] = packets[i].getDataSegment();
+            encodedLength += packetLength - (mDataSegments[i] == null ? 0 : mDataSegments[i].remaining());
+        }
+        if (mPacketBuffer.capacity() < encodedLength) {
+            mPacketBuffer = ByteBuffer.allocateDirect(encodedLength).order(ByteOrder.LITTLE_ENDIAN);
+            Arrays.fill(mPacketSlices, null);
+        }
+        mPacketBuffer.clear();
+
+        int segmentStart = 0;
+        for (int i = 0; i < packets.length; i++) {
+            packets[i].serializePacket(mPacketBuffer);
+            if (mDataSegments[i] == null) continue;
+            addPacketSlice(segmentStart, mPacketBuffer.position());
+            addSegment(mDataSegments[i]);
+            mDataSegments[i] = null;
+            segmentStart = mPacketBuffer.position();
+        }
+        if (mPacketBuffer.position() > segmentStart) addPacketSlice(segmentStart, mPacketBuffer.position());
+    }
+
+    private void addSegment(ByteBuffer segment) {
+        if (mSegmentCount == mSegments.length) mSegments = Arrays.copyOf(mSegments, 2 * mSegmentCount);
+        mSegments[mSegmentCount++] = segment;
+    }
+
+    private void addPacketSlice(int from, int to) {
+        if (mPacketSliceCount == mPacketSlices.length) mPacketSlices = Arrays.copyOf(mPacketSlices, 2 * mPacketSliceCount);
+        ByteBuffer slice = mPacketSlices[mPacketSliceCount];
+        if (slice == null) slice = mPacketSlices[mPacketSliceCount] = mPacketBuffer.duplicate();
+        mPacketSliceCount++;
+        slice.limit(to).position(from);
+        addSegment(slice);
+    }
+
+    private void writeSegments() throws IOException {
+        try {
+            if (mSelectorLoop != null) flushControlPackets(true);     // never interleave with a half-written probe
+            long remaining = 0;
+            for (int i = 0; i < mSegmentCount; i++) remaining += mSegments[i].remaining();
+            SocketChannel channel = mSocket.getChannel();
+            while (remaining > 0) {
+                long written = channel.write(mSegments, 0, mSegmentCount);
+                if (written == 0) awaitWritable(channel);              // non-blocking channel with a full send buffer
+                remaining -= written;
+            }
+        }
+        finally {
+            Arrays.fill(mSegments, 0, mSegmentCount, null);            // don't hold on to the packets' payloads
+            mSegmentCount = 0;
+        }
+    }
+
+    private void awaitWritable(SocketChannel channel) throws IOException {
+        if (mWriteSelector == null) {
+            mWriteSelector = Selector.open();
+            channel.register(mWriteSelector, SelectionKey.OP_WRITE);
+        }
+        try {
+            if (mHasSendDeadline) {
+                long remaining = mSendDeadline - System.nanoTime();
+                if (remaining <= 0) throw new SocketTimeoutException("Responder stopped taking data!");
+                mWriteSelector.select(Math.max(remaining / 1000000, 1));
+            }
+            else mWriteSelector.select();
+            mWriteSelector.selectedKeys().clear();
+        }
+        catch (ClosedSelectorException e) {throw new IOException("Connection closed!");}
+        if (mIsClosed) throw new IOException("Connection closed!");
+    }
+
     public void close() {
-        LOG.info("PTPIP: Closing TCP connection");
+        LOG.fine("PTPIP: Closing TCP connection");
         mIsClosed = true;
         try {mIn .close();} catch (Exception e) {}
         try {mOut.close();} catch (Exception e) {}
+        if (mWriteSelector != null) try {mWriteSelector.close();} catch (Exception e) {}
     }
 
     public long getLastActivityTimestamp() {return mLastActivityTimestamp;}
+
+    // must be set before connecting
+    void setThreadFactory(ThreadFactory threadFactory) {mThreadFactory = threadFactory;}
+    // selector mode: no listener thread, the selector's loop reads whatever is available (see PtpIpSelector)
+    void setSelectorLoop(PtpIpSelector.Loop loop) {mSelectorLoop = loop;}
+    boolean isSelectorDriven() {return mSelectorLoop != null;}
+    SocketChannel getChannel() {return mSocket.getChannel();}
+
+    // must be set before connecting
+    public void setConnectTimeout(int timeout) {mConnectTimeout = timeout;}
+    public void setSocketBufferSizes(int receiveBufferSize, int sendBufferSize) {
+        mSoReceiveBufferSize = receiveBufferSize;
+        mSoSendBufferSize = sendBufferSize;
+    }
+
+    // the channel reads from the same stream as the listener (buffered bytes first) - only use it from within a PayloadReceiver
+    protected ReadableByteChannel getInputChannel() {return mIn;}
+    protected void setPayloadReceiver(PtpIpPacket.PayloadReceiver receiver) {mPayloadReceiver = receiver;}
+    protected void setReceiveProgress(PtpTransferProgress progress) {mReceiveProgress = progress;}
+    protected void setSendDeadline(long deadline) {mSendDeadline = deadline; mHasSendDeadline = true;}
+    protected void clearSendDeadline() {mHasSendDeadline = false;}
+
+    // A blocking channel's write can't time out by itself, so a watchdog calls this: once the deadline has
+    // passed with a send still under way, the connection is closed under it. Returns the ms until the deadline
+    // (Long.MAX_VALUE if there's nothing to watch). On a non-blocking channel awaitWritable keeps the deadline.
+    long checkSendDeadline() {
+        if (!mHasSendDeadline) return Long.MAX_VALUE;
+        long remaining = mSendDeadline - System.nanoTime();
+        if (remaining > 0) return Math.max(remaining / 1000000, 1);
+        if (mIsWriting) {
+            LOG.severe("PTPIP: Send deadline passed with the responder not taking data - closing connection!");
+            mSendTimedOut = true;
+            close();
+        }
+        return Long.MAX_VALUE;
+    }
+    private IOException onSendError(IOException e) {
+        return mSendTimedOut ? new SocketTimeoutException("Responder stopped taking data!") : e;
+    }
+    protected void setPacketTrace(PacketTrace trace) {mPacketTrace = trace;}
 }
\ No newline at end of file